@@ -0,0 +1,491 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of persistent (keep-alive) socket connections, kept separately for
+ * each protocol, host and port. Reusing a connection avoids a new TCP
+ * handshake, and for HTTPS a new TLS handshake, for every request to the same
+ * host.
+ *
+ * The number of connections open to each host at once is capped; callers block
+ * until a connection to that host is released. Connections left idle for too
+ * long are closed the next time the pool is used for that host.
+ *
+ * @see HttpsFetcher#fetchURL(URL)
+ *
+ * @author heidishimek
+ *
+ */
+public class ConnectionPool
+{
+	/** The default number of connections open to a single host at once. */
+	public static final int MAX_PER_HOST = 6;
+
+	/** The default time an idle connection is kept before it is closed. */
+	public static final Duration IDLE_TIMEOUT = Duration.ofSeconds(15);
+
+	/** The number of connections open to a single host at once. */
+	private final int maxPerHost;
+
+	/** The time an idle connection is kept, in nanoseconds. */
+	private final long idleTimeout;
+
+	/** The connections for each host. */
+	private final ConcurrentHashMap<String, Host> hosts;
+
+	/** The number of idle connections closed for being idle too long. */
+	private final LongAdder evicted;
+
+	/** The number of connections closed because they could not be reused. */
+	private final LongAdder discarded;
+
+	/**
+	 * Initializes a pool with the default limits.
+	 */
+	public ConnectionPool()
+	{
+		this(MAX_PER_HOST, IDLE_TIMEOUT);
+	}
+
+	/**
+	 * Initializes a pool.
+	 *
+	 * @param maxPerHost the number of connections open to a single host at once
+	 * @param idleTimeout the time an idle connection is kept before it is closed
+	 */
+	public ConnectionPool(int maxPerHost, Duration idleTimeout)
+	{
+		this.maxPerHost = Math.max(maxPerHost, 1);
+		this.idleTimeout = idleTimeout.toNanos();
+		this.hosts = new ConcurrentHashMap<>();
+		this.evicted = new LongAdder();
+		this.discarded = new LongAdder();
+	}
+
+	/**
+	 * Returns the key connections to the url are pooled under.
+	 *
+	 * @param url the url to connect to
+	 * @return the protocol, host and port of the url
+	 */
+	private static String key(URL url)
+	{
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Returns an idle connection to the host of the url if one is available, or
+	 * opens a new one. Blocks while the maximum number of connections to that
+	 * host are in use. Every connection acquired must be given back with
+	 * {@link #release(Connection)}.
+	 *
+	 * @param url the url to connect to
+	 * @return a connection to the host of the url
+	 * @throws IOException if unable to open a new connection
+	 *
+	 * @see HttpsFetcher#openConnection(URL)
+	 */
+	public Connection acquire(URL url) throws IOException
+	{
+		Host host = hosts.computeIfAbsent(key(url), Host::new);
+
+		try
+		{
+			host.permits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + host.key);
+		}
+
+		try
+		{
+			Connection connection = host.poll();
+
+			if (connection != null)
+			{
+				host.hits.increment();
+				return connection;
+			}
+
+			host.misses.increment();
+			return new Connection(host, HttpsFetcher.openConnection(url));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			host.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool. It is kept for reuse if it was marked
+	 * as reusable, and closed otherwise.
+	 *
+	 * @param connection the connection to release
+	 *
+	 * @see Connection#reusable(boolean)
+	 */
+	public void release(Connection connection)
+	{
+		Host host = connection.host;
+
+		try
+		{
+			if (connection.reusable && !connection.socket.isClosed())
+			{
+				connection.reusable = false;
+				connection.reused = true;
+				connection.released = System.nanoTime();
+				host.offer(connection);
+			}
+			else
+			{
+				discarded.increment();
+				connection.close();
+			}
+		}
+		finally
+		{
+			host.permits.release();
+		}
+	}
+
+	/**
+	 * Closes every idle connection that has been idle for too long.
+	 */
+	public void evictIdle()
+	{
+		for (Host host : hosts.values())
+		{
+			synchronized (host.idle)
+			{
+				host.evict(System.nanoTime());
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle connection. Connections in use are closed when released.
+	 */
+	public void closeIdle()
+	{
+		for (Host host : hosts.values())
+		{
+			synchronized (host.idle)
+			{
+				host.idle.forEach(Connection::close);
+				host.idle.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns a summary of how often connections were reused, overall and for
+	 * each host, suitable for writing as JSON.
+	 *
+	 * @return the pool statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		Map<String, Object> byHost = new TreeMap<>();
+		long hits = 0;
+		long misses = 0;
+
+		for (Host host : hosts.values())
+		{
+			long hostHits = host.hits.sum();
+			long hostMisses = host.misses.sum();
+			hits += hostHits;
+			misses += hostMisses;
+
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("hits", hostHits);
+			summary.put("misses", hostMisses);
+			summary.put("hitRate", rate(hostHits, hostMisses));
+			summary.put("idle", host.size());
+			byHost.put(host.key, summary);
+		}
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("maxPerHost", maxPerHost);
+		stats.put("hits", hits);
+		stats.put("misses", misses);
+		stats.put("hitRate", rate(hits, misses));
+		stats.put("evicted", evicted.sum());
+		stats.put("discarded", discarded.sum());
+		stats.put("hosts", byHost);
+		return stats;
+	}
+
+	/**
+	 * Returns the fraction of requests that reused a connection.
+	 *
+	 * @param hits requests that reused a connection
+	 * @param misses requests that opened a new connection
+	 * @return the hit rate rounded to three decimal places, or 0 if there were
+	 *         no requests
+	 */
+	private static double rate(long hits, long misses)
+	{
+		long total = hits + misses;
+		return total == 0 ? 0 : Math.round(hits * 1000.0 / total) / 1000.0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * The connections to a single protocol, host and port.
+	 */
+	private class Host
+	{
+		/** The protocol, host and port. */
+		private final String key;
+
+		/** Limits the number of connections open at once. */
+		private final Semaphore permits;
+
+		/** The idle connections, most recently used first. */
+		private final ArrayDeque<Connection> idle;
+
+		/** The number of requests that reused a connection. */
+		private final LongAdder hits;
+
+		/** The number of requests that opened a new connection. */
+		private final LongAdder misses;
+
+		/**
+		 * Initializes a host with no connections.
+		 *
+		 * @param key the protocol, host and port
+		 */
+		public Host(String key)
+		{
+			this.key = key;
+			this.permits = new Semaphore(maxPerHost, true);
+			this.idle = new ArrayDeque<>();
+			this.hits = new LongAdder();
+			this.misses = new LongAdder();
+		}
+
+		/**
+		 * Returns the most recently used idle connection that is still open,
+		 * closing any that have been idle for too long.
+		 *
+		 * @return an idle connection, or {@code null} if there are none
+		 */
+		public Connection poll()
+		{
+			synchronized (idle)
+			{
+				evict(System.nanoTime());
+
+				Connection connection;
+
+				while ((connection = idle.pollFirst()) != null)
+				{
+					if (!connection.socket.isClosed())
+					{
+						return connection;
+					}
+				}
+
+				return null;
+			}
+		}
+
+		/**
+		 * Adds an idle connection, closing any that have been idle for too long.
+		 *
+		 * @param connection the idle connection
+		 */
+		public void offer(Connection connection)
+		{
+			synchronized (idle)
+			{
+				idle.offerFirst(connection);
+				evict(connection.released);
+			}
+		}
+
+		/**
+		 * Closes the connections that have been idle for too long. The oldest
+		 * are at the end of the queue. Must be called while synchronized on the
+		 * idle connections.
+		 *
+		 * @param now the current time in nanoseconds
+		 */
+		private void evict(long now)
+		{
+			Iterator<Connection> oldest = idle.descendingIterator();
+
+			while (oldest.hasNext())
+			{
+				Connection connection = oldest.next();
+
+				if (now - connection.released < idleTimeout)
+				{
+					break;
+				}
+
+				oldest.remove();
+				connection.close();
+				evicted.increment();
+			}
+		}
+
+		/**
+		 * Returns the number of idle connections.
+		 *
+		 * @return number of idle connections
+		 */
+		public int size()
+		{
+			synchronized (idle)
+			{
+				return idle.size();
+			}
+		}
+	}
+
+	/**
+	 * A socket connection acquired from the pool. Only one thread should use a
+	 * connection at a time.
+	 */
+	public static class Connection implements Closeable
+	{
+		/** The host this connection belongs to. */
+		private final Host host;
+
+		/** The socket connection. */
+		private final Socket socket;
+
+		/** The buffered input from the socket. */
+		private final InputStream input;
+
+		/** The buffered output to the socket. */
+		private final OutputStream output;
+
+		/** Whether this connection may be reused once released. */
+		private boolean reusable;
+
+		/** Whether this connection was used before it was acquired. */
+		private boolean reused;
+
+		/** When this connection was last released, in nanoseconds. */
+		private long released;
+
+		/**
+		 * Initializes a new connection.
+		 *
+		 * @param host the host this connection belongs to
+		 * @param socket the socket connection
+		 * @throws IOException if unable to get the socket streams
+		 */
+		private Connection(Host host, Socket socket) throws IOException
+		{
+			this.host = host;
+			this.socket = socket;
+
+			try
+			{
+				this.input = new BufferedInputStream(socket.getInputStream());
+				this.output = new BufferedOutputStream(socket.getOutputStream());
+			}
+			catch (IOException e)
+			{
+				socket.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the socket connection.
+		 *
+		 * @return the socket
+		 */
+		public Socket socket()
+		{
+			return socket;
+		}
+
+		/**
+		 * Returns the buffered input from the socket.
+		 *
+		 * @return the input stream
+		 */
+		public InputStream input()
+		{
+			return input;
+		}
+
+		/**
+		 * Returns the buffered output to the socket.
+		 *
+		 * @return the output stream
+		 */
+		public OutputStream output()
+		{
+			return output;
+		}
+
+		/**
+		 * Marks whether this connection may be reused once released. Should only
+		 * be set after the complete response has been read.
+		 *
+		 * @param reusable whether the connection may be reused
+		 */
+		public void reusable(boolean reusable)
+		{
+			this.reusable = reusable;
+		}
+
+		/**
+		 * Returns whether this connection was used for an earlier request. The
+		 * server may have closed such a connection while it was idle.
+		 *
+		 * @return {@code true} if the connection was reused
+		 */
+		public boolean reused()
+		{
+			return reused;
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// nothing more can be done with a socket that fails to close
+			}
+		}
+	}
+}
@@ -0,0 +1,509 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Saves the progress of a crawl to a directory as it goes, so a crawl that is
+ * stopped part way can be resumed instead of starting over.
+ *
+ * Progress is saved as a series of binary segment files. Each segment holds a
+ * batch of crawled pages: the url of each page, the links it added to the
+ * frontier, and the words and positions it added to the index. Together the
+ * segments give the visited urls, the urls already crawled, and the index built
+ * from them; the frontier is every visited url not crawled yet.
+ *
+ * Pages are encoded by the crawling thread, which is cheap, and segments are
+ * written to disk by a single background thread so crawling never waits on
+ * the disk. A segment is written to a temporary file and then renamed, so a
+ * crawl stopped at any point leaves only whole segments behind.
+ *
+ * @see WebCrawler
+ *
+ * @author heidishimek
+ *
+ */
+public class CrawlCheckpoint implements Closeable
+{
+	/** The number of pages saved in each segment. */
+	public static final int SEGMENT_PAGES = 64;
+
+	/** How often a segment is saved even if it is not full, in milliseconds. */
+	public static final long INTERVAL = 5000;
+
+	/** Identifies a segment file. */
+	private static final int MAGIC = 0x43524157;
+
+	/** The version of the segment format. */
+	private static final int VERSION = 2;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The directory the segments are saved in. */
+	private final Path directory;
+
+	/** Writes the segments in the background. */
+	private final ExecutorService writer;
+
+	/** The encoded pages waiting to be saved. */
+	private List<byte[]> pending;
+
+	/** The number of the next segment. */
+	private int segment;
+
+	/** When the last segment was handed off to be saved, in nanoseconds. */
+	private long saved;
+
+	/** The first error while saving a segment, if any. */
+	private volatile IOException failure;
+
+	/** The number of pages saved. */
+	private final LongAdder pages;
+
+	/** The number of bytes saved. */
+	private final LongAdder bytes;
+
+	/** How long saving each segment took, in nanoseconds. */
+	private final Histogram writeTime;
+
+	/** The number of pages loaded when resuming. */
+	private int loaded;
+
+	/**
+	 * Opens a checkpoint directory, creating it if needed. If not resuming, any
+	 * segments from an earlier crawl are deleted.
+	 *
+	 * @param directory the directory to save segments in
+	 * @param resume whether to keep the segments of an earlier crawl
+	 * @throws IOException if unable to create or clear the directory
+	 */
+	public CrawlCheckpoint(Path directory, boolean resume) throws IOException
+	{
+		this.directory = directory;
+		this.pending = new ArrayList<>();
+		this.saved = System.nanoTime();
+		this.pages = new LongAdder();
+		this.bytes = new LongAdder();
+		this.writeTime = new Histogram();
+		this.segment = 0;
+		this.loaded = 0;
+
+		Files.createDirectories(directory);
+
+		for (Path path : list("segment-*.tmp"))
+		{
+			Files.delete(path);
+		}
+
+		for (Path path : list("segment-*.bin"))
+		{
+			if (resume)
+			{
+				segment = Math.max(segment, number(path) + 1);
+			}
+			else
+			{
+				Files.delete(path);
+			}
+		}
+
+		this.writer = Executors.newSingleThreadExecutor(
+				Thread.ofPlatform().name("checkpoint").daemon().factory());
+	}
+
+	/**
+	 * Lists the files in the checkpoint directory that match a glob, in name
+	 * order.
+	 *
+	 * @param glob the glob to match
+	 * @return the matching files
+	 * @throws IOException if unable to list the directory
+	 */
+	private List<Path> list(String glob) throws IOException
+	{
+		List<Path> paths = new ArrayList<>();
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob))
+		{
+			stream.forEach(paths::add);
+		}
+
+		paths.sort(null);
+		return paths;
+	}
+
+	/**
+	 * Returns the number of a segment from its file name.
+	 *
+	 * @param path the segment file
+	 * @return the segment number
+	 */
+	private static int number(Path path)
+	{
+		String name = path.getFileName().toString();
+		return Integer.parseInt(name.substring("segment-".length(), name.lastIndexOf('.')));
+	}
+
+	/**
+	 * Returns the file of a segment.
+	 *
+	 * @param number the segment number
+	 * @param suffix the file extension
+	 * @return the segment file
+	 */
+	private Path path(int number, String suffix)
+	{
+		return directory.resolve(String.format("segment-%06d.%s", number, suffix));
+	}
+
+	/**
+	 * Saves a crawled page. Pages are saved in batches, once enough have been
+	 * recorded or enough time has passed since the last batch.
+	 *
+	 * @param url the url of the page
+	 * @param links the links the page added to the frontier
+	 * @param local the local index of the page, or {@code null} if the page
+	 *   could not be crawled
+	 */
+	public void record(URL url, Collection<URL> links, InvertedIndex local)
+	{
+		byte[] page = encode(url, links, local);
+
+		synchronized (this)
+		{
+			pending.add(page);
+
+			if (pending.size() >= SEGMENT_PAGES || System.nanoTime() - saved >= INTERVAL * 1_000_000)
+			{
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Hands off the pages recorded so far to be saved as a segment.
+	 */
+	public synchronized void flush()
+	{
+		saved = System.nanoTime();
+
+		if (!pending.isEmpty())
+		{
+			List<byte[]> batch = pending;
+			int number = segment++;
+			pending = new ArrayList<>();
+			writer.execute(() -> write(number, batch));
+		}
+	}
+
+	/**
+	 * Saves a segment, first to a temporary file and then renaming it.
+	 *
+	 * @param number the segment number
+	 * @param batch the encoded pages
+	 */
+	private void write(int number, List<byte[]> batch)
+	{
+		long start = System.nanoTime();
+		Path temp = path(number, "tmp");
+		long size = 0;
+
+		try
+		{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(batch.size());
+
+				for (byte[] page : batch)
+				{
+					out.write(page);
+				}
+
+				size = out.size();
+			}
+
+			Files.move(temp, path(number, "bin"), StandardCopyOption.ATOMIC_MOVE);
+			pages.add(batch.size());
+			bytes.add(size);
+			writeTime.record(System.nanoTime() - start);
+		}
+		catch (IOException e)
+		{
+			log.debug("Unable to save checkpoint segment {}.", number, e);
+
+			if (failure == null)
+			{
+				failure = e;
+			}
+		}
+	}
+
+	/**
+	 * Encodes a crawled page.
+	 *
+	 * @param url the url of the page
+	 * @param links the links the page added to the frontier
+	 * @param local the local index of the page, or {@code null}
+	 * @return the encoded page
+	 */
+	private static byte[] encode(URL url, Collection<URL> links, InvertedIndex local)
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+
+		try (DataOutputStream out = new DataOutputStream(buffer))
+		{
+			writePage(out, url, links, local);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Writes a crawled page in the binary format used by the segments.
+	 *
+	 * @param out the output to write to
+	 * @param url the url of the page
+	 * @param links the links of the page
+	 * @param local the local index of the page, or {@code null} if it has none
+	 * @throws IOException if unable to write
+	 *
+	 * @see #readPage(DataInput, Collection, InvertedIndex)
+	 */
+	public static void writePage(DataOutput out, URL url, Collection<URL> links, InvertedIndex local) throws IOException
+	{
+		String location = url.toString();
+		writeString(out, location);
+		out.writeInt(links.size());
+
+		for (URL link : links)
+		{
+			writeString(out, link.toString());
+		}
+
+		Set<String> words = local == null ? Set.of() : local.getWords();
+		out.writeInt(words.size());
+
+		for (String word : words)
+		{
+			Set<Integer> positions = local.getPositions(word, location);
+			writeString(out, word);
+			out.writeInt(positions.size());
+
+			for (int position : positions)
+			{
+				out.writeInt(position);
+			}
+		}
+	}
+
+	/**
+	 * Reads a crawled page written by
+	 * {@link #writePage(DataOutput, URL, Collection, InvertedIndex)}.
+	 *
+	 * @param in the input to read from
+	 * @param links the links to add the links of the page to
+	 * @param local the index to add the words of the page to
+	 * @return the url of the page
+	 * @throws IOException if unable to read a valid page
+	 */
+	public static URL readPage(DataInput in, Collection<URL> links, InvertedIndex local) throws IOException
+	{
+		String location = readString(in);
+		URL url = LinkParser.parse(location);
+
+		for (int count = in.readInt(); count > 0; count--)
+		{
+			links.add(LinkParser.parse(readString(in)));
+		}
+
+		for (int words = in.readInt(); words > 0; words--)
+		{
+			String word = readString(in);
+
+			for (int positions = in.readInt(); positions > 0; positions--)
+			{
+				local.add(word, location, in.readInt());
+			}
+		}
+
+		return url;
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 bytes.
+	 * Unlike {@link DataOutput#writeUTF(String)}, strings of any length can be
+	 * written, such as very long links or words.
+	 *
+	 * @param out the output to write to
+	 * @param string the string to write
+	 * @throws IOException if unable to write
+	 *
+	 * @see #readString(DataInput)
+	 */
+	public static void writeString(DataOutput out, String string) throws IOException
+	{
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 *
+	 * @param in the input to read from
+	 * @return the string
+	 * @throws IOException if unable to read a valid string
+	 */
+	public static String readString(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+
+		if (length < 0)
+		{
+			throw new IOException("Invalid string length: " + length);
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Loads every saved segment. The index of each page is added to the index,
+	 * each page is added to the crawled urls, and each page and the links it
+	 * added are added to the visited urls. Segments that cannot be read are
+	 * skipped.
+	 *
+	 * @param index the index to add to
+	 * @param crawled the crawled urls to add to
+	 * @param visited the visited urls to add to, in the order they were found
+	 * @return the number of pages loaded
+	 * @throws IOException if unable to list the segments
+	 */
+	public int load(InvertedIndex index, Set<URL> crawled, Set<URL> visited) throws IOException
+	{
+		for (Path path : list("segment-*.bin"))
+		{
+			List<InvertedIndex> locals = new ArrayList<>();
+			List<URL> urls = new ArrayList<>();
+			List<URL> found = new ArrayList<>();
+
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path))))
+			{
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				{
+					throw new IOException("Not a checkpoint segment: " + path);
+				}
+
+				for (int pages = in.readInt(); pages > 0; pages--)
+				{
+					InvertedIndex local = new InvertedIndex();
+					urls.add(readPage(in, found, local));
+					locals.add(local);
+				}
+			}
+			catch (IOException e)
+			{
+				log.debug("Skipping unreadable checkpoint segment {}.", path, e);
+				continue;
+			}
+
+			index.addAll(locals);
+
+			for (URL url : urls)
+			{
+				crawled.add(url);
+				visited.add(url);
+			}
+
+			visited.addAll(found);
+			loaded += urls.size();
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * Saves any pages not saved yet and waits for every segment to be written.
+	 *
+	 * @throws IOException if any segment could not be saved
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		flush();
+		writer.shutdown();
+
+		try
+		{
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Returns a summary of what was saved and loaded, suitable for writing as
+	 * JSON. Times are reported in milliseconds.
+	 *
+	 * @return the checkpoint statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public synchronized Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("directory", directory.toString());
+		stats.put("loadedPages", loaded);
+		stats.put("savedSegments", writeTime.count());
+		stats.put("savedPages", pages.sum());
+		stats.put("savedBytes", bytes.sum());
+		stats.put("writeMillis", writeTime.toMap(1_000_000));
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return directory.toString();
+	}
+}
@@ -0,0 +1,233 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The content of an HTTP response, decoded from its "Content-Encoding" as it
+ * is read. Supports gzip and deflate (with or without the zlib wrapper that
+ * the standard requires but some servers leave out), as well as unencoded
+ * content. Reading stops once a maximum number of decoded bytes have been
+ * read, so a small compressed response cannot expand without limit.
+ *
+ * Closing the decoded content releases the decoder, but leaves the encoded
+ * body open so that the rest of it can still be read.
+ *
+ * @see ResponseBody
+ * @see HttpsFetcher
+ *
+ * @author heidishimek
+ *
+ */
+public class DecodedBody extends InputStream
+{
+	/** The content codings to ask servers for. */
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	/** The size of the buffer used by the decoders. */
+	private static final int BUFFER = 8192;
+
+	/** The encoded body. */
+	private final InputStream encoded;
+
+	/** The content coding, in lowercase. */
+	private final String encoding;
+
+	/** The maximum number of decoded bytes to read. */
+	private final long limit;
+
+	/** The decoder, created on the first read. */
+	private InputStream decoder;
+
+	/** The inflater used for deflate, which has to be released when done. */
+	private Inflater inflater;
+
+	/** The number of decoded bytes read so far. */
+	private long read;
+
+	/**
+	 * Initializes the decoded content of a response.
+	 *
+	 * @param encoded the encoded body
+	 * @param headers the response headers
+	 * @param limit the maximum number of decoded bytes to read
+	 * @throws IOException if the content coding is not supported
+	 */
+	public DecodedBody(InputStream encoded, Map<String, List<String>> headers, long limit) throws IOException
+	{
+		String encoding = ResponseBody.getHeader(headers, "Content-Encoding");
+
+		this.encoded = encoded;
+		this.encoding = encoding == null ? "identity" : encoding.trim().toLowerCase();
+		this.limit = Math.max(limit, 0);
+		this.read = 0;
+
+		if (!isSupported(this.encoding))
+		{
+			throw new IOException("Unsupported content coding: " + encoding);
+		}
+	}
+
+	/**
+	 * Checks whether content in the coding can be decoded.
+	 *
+	 * @param encoding the content coding, in lowercase
+	 * @return {@code true} if the coding is supported
+	 */
+	private static boolean isSupported(String encoding)
+	{
+		switch (encoding)
+		{
+			case "":
+			case "identity":
+			case "gzip":
+			case "x-gzip":
+			case "deflate":
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns whether the content was encoded.
+	 *
+	 * @return {@code true} if the content was compressed
+	 */
+	public boolean isEncoded()
+	{
+		return !encoding.isEmpty() && !encoding.equals("identity");
+	}
+
+	/**
+	 * Creates the decoder for the content coding. Empty content is never
+	 * decoded, since responses without a body may still name a coding.
+	 *
+	 * @return the decoder
+	 * @throws IOException if unable to read the start of the content
+	 */
+	private InputStream open() throws IOException
+	{
+		if (!isEncoded())
+		{
+			return encoded;
+		}
+
+		// closing the decoder must not close the body underneath it
+		PushbackInputStream input = new PushbackInputStream(new FilterInputStream(encoded)
+		{
+			@Override
+			public void close()
+			{
+			}
+		}, 2);
+
+		byte[] start = input.readNBytes(2);
+		input.unread(start);
+
+		if (start.length == 0)
+		{
+			return input;
+		}
+
+		if (encoding.equals("deflate"))
+		{
+			inflater = new Inflater(!isZlib(start));
+			return new InflaterInputStream(input, inflater, BUFFER);
+		}
+
+		return new GZIPInputStream(input, BUFFER);
+	}
+
+	/**
+	 * Checks whether deflate content starts with a zlib header.
+	 *
+	 * @param start the first bytes of the content
+	 * @return {@code true} if the content has the zlib wrapper
+	 */
+	private static boolean isZlib(byte[] start)
+	{
+		int method = start[0] & 0xFF;
+		return start.length == 2 && (method & 0x0F) == 8 && ((method << 8) | (start[1] & 0xFF)) % 31 == 0;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+
+		if (read >= limit)
+		{
+			return -1;
+		}
+
+		if (decoder == null)
+		{
+			decoder = open();
+		}
+
+		int count = decoder.read(bytes, offset, (int) Math.min(length, limit - read));
+
+		if (count > 0)
+		{
+			read += count;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns whether reading stopped at the maximum number of decoded bytes,
+	 * in which case there may have been more content.
+	 *
+	 * @return {@code true} if the content may have been cut short
+	 */
+	public boolean isTruncated()
+	{
+		return read >= limit;
+	}
+
+	/**
+	 * Returns the number of decoded bytes read so far.
+	 *
+	 * @return the number of decoded bytes
+	 */
+	public long bytesRead()
+	{
+		return read;
+	}
+
+	/**
+	 * Releases the decoder. The encoded body is left open.
+	 *
+	 * @throws IOException if unable to release the decoder
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (decoder != null && decoder != encoded)
+		{
+			decoder.close();
+		}
+
+		if (inflater != null)
+		{
+			inflater.end();
+		}
+	}
+}
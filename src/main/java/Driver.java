@@ -1,7 +1,11 @@
 import java.time.Duration;
 import java.time.Instant;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 /**
@@ -14,6 +18,13 @@ import java.nio.file.Path;
  */
 public class Driver {
 
+	/**
+	 * Initializes a driver. Only {@link #main(String[])} is used.
+	 */
+	public Driver() {
+		super();
+	}
+
 	/**
 	 * Initializes the classes necessary based on the provided command-line
 	 * arguments. This includes (but is not limited to) how to build or search an
@@ -35,8 +46,17 @@ public class Driver {
 		
 		int threads = 0;
 		WorkQueue workQueue = null;
+		ThreadSafeInvertedIndex threadSafe = null;
+		HostScheduler scheduler = null;
+		CrawlCheckpoint checkpoint = null;
+		DuplicateDetector duplicates = null;
+		HttpCache cache = null;
+		RobotsCache robots = null;
+		IndexUpdater updater = null;
+		SearchServer server = null;
+		IndexWatcher watcher = null;
 		
-		if (argMap.hasFlag("-threads"))
+		if (argMap.hasFlag("-threads") || argMap.hasFlag("-html") || argMap.hasFlag("-live") || argMap.hasFlag("-watch"))
 		{	
 			threads = argMap.getInteger("-threads", 5);
 			
@@ -45,11 +65,17 @@ public class Driver {
 				threads = 5;
 			}
 			
-			workQueue = new WorkQueue(threads);
-			invertedIndex = new ThreadSafeInvertedIndex();
- 			ThreadSafeInvertedIndex threadSafe = new ThreadSafeInvertedIndex(); 
- 			invertedIndex = threadSafe;
- 			indexFactory = new ThreadSafeIndexFactory(threadSafe, workQueue);
+			int capacity = argMap.getInteger("-capacity", 0);
+			workQueue = new WorkQueue(threads, argMap.hasFlag("-virtual"), capacity);
+			threadSafe = new ThreadSafeInvertedIndex(argMap.hasFlag("-lockstats"));
+			invertedIndex = threadSafe;
+
+			if (argMap.hasFlag("-live") || argMap.hasFlag("-watch"))
+			{
+				updater = new IndexUpdater(threadSafe);
+			}
+
+ 			indexFactory = new ThreadSafeIndexFactory(threadSafe, workQueue, updater);
  			queryFactory = new ThreadSafeQueryFactory(threadSafe, workQueue);
 		}
 		
@@ -60,9 +86,126 @@ public class Driver {
 			queryFactory = new QueryFactory(invertedIndex);
 		}
 		
+		if (updater != null && argMap.hasFlag("-server"))
+		{
+			int port = argMap.getInteger("-server", SearchServer.PORT);
+			server = new SearchServer(invertedIndex, port, argMap.getInteger("-serverthreads", SearchServer.THREADS), updater);
+
+			try
+			{
+				server.start();
+				System.out.println("Serving search requests on port " + server.port() + " while indexing");
+			}
+
+			catch (Exception e)
+			{
+				System.out.println("Unable to run the search server on port " + port);
+				server = null;
+			}
+		}
+
 		if (argMap.hasFlag("-html"))
 		{
-			
+			String seed = argMap.getString("-html");
+
+			if (seed != null)
+			{
+				try
+				{
+					if (argMap.hasFlag("-timeout"))
+					{
+						Duration timeout = Duration.ofSeconds(Math.max(argMap.getInteger("-timeout", 30), 1));
+						HttpsFetcher.setTimeouts(timeout, timeout);
+					}
+
+					if (argMap.hasFlag("-connections"))
+					{
+						int connections = argMap.getInteger("-connections", ConnectionPool.MAX_PER_HOST);
+						HttpsFetcher.setPool(new ConnectionPool(connections, ConnectionPool.IDLE_TIMEOUT));
+					}
+
+					Duration delay = Duration.ofMillis(Math.max(argMap.getInteger("-delay", 0), 0));
+					int perHost = argMap.getInteger("-perhost", HostScheduler.MAX_PER_HOST);
+					boolean async = argMap.hasFlag("-async");
+					scheduler = new HostScheduler(delay, perHost, async ? Integer.MAX_VALUE : threads);
+
+					if (argMap.hasFlag("-checkpoint") || argMap.hasFlag("-resume"))
+					{
+						Path directory = argMap.getPath("-checkpoint", Path.of("checkpoint"));
+
+						try
+						{
+							checkpoint = new CrawlCheckpoint(directory, argMap.hasFlag("-resume"));
+						}
+						catch (IOException e)
+						{
+							System.out.println("Unable to use the crawl checkpoint directory " + directory);
+						}
+					}
+
+					if (argMap.hasFlag("-dedup"))
+					{
+						duplicates = new DuplicateDetector(argMap.getInteger("-dedup", DuplicateDetector.CAPACITY));
+					}
+
+					if (argMap.hasFlag("-cache"))
+					{
+						Path directory = argMap.getPath("-cache", Path.of("cache"));
+
+						try
+						{
+							cache = new HttpCache(directory);
+						}
+						catch (IOException e)
+						{
+							System.out.println("Unable to use the page cache directory " + directory);
+						}
+					}
+
+					if (argMap.hasFlag("-robots"))
+					{
+						Duration ttl = Duration.ofSeconds(argMap.getInteger("-robots", (int) RobotsCache.TTL.toSeconds()));
+						robots = new RobotsCache(RobotsCache.AGENT, ttl);
+					}
+
+					int max = argMap.getInteger("-max", 1);
+					long maxBytes = argMap.getInteger("-maxbytes", (int) WebCrawler.MAX_BYTES);
+					WebCrawler crawler = new WebCrawler.Builder(threadSafe, workQueue)
+							.max(max)
+							.async(async)
+							.maxBytes(maxBytes)
+							.scheduler(scheduler)
+							.checkpoint(checkpoint)
+							.duplicates(duplicates)
+							.cache(cache)
+							.robots(robots)
+							.updater(updater)
+							.build();
+					crawler.crawl(LinkParser.parse(seed));
+					HttpsFetcher.pool().closeIdle();
+
+					if (checkpoint != null)
+					{
+						try
+						{
+							checkpoint.close();
+						}
+						catch (IOException e)
+						{
+							System.out.println("Unable to save the crawl checkpoint to " + checkpoint);
+						}
+					}
+				}
+
+				catch (MalformedURLException e)
+				{
+					System.out.println("Unable to crawl the -html value of: " + seed);
+				}
+			}
+			else
+			{
+				System.out.println("Unable to crawl: -html value provided without url value");
+			}
 		}
 		
 		if (argMap.hasFlag("-text"))
@@ -81,6 +224,22 @@ public class Driver {
 				{
 					System.out.println("Unable to build the inverted index from the -text value of:" + input.toString());
 				}
+
+				if (argMap.hasFlag("-watch"))
+				{
+					Duration debounce = Duration.ofMillis(argMap.getInteger("-watch", IndexWatcher.DEBOUNCE));
+
+					try
+					{
+						watcher = new IndexWatcher(input, updater, workQueue, debounce);
+						watcher.start();
+					}
+
+					catch (IOException e)
+					{
+						System.out.println("Unable to watch the -text value of: " + input);
+					}
+				}
 			}
 			else
 			{
@@ -156,14 +315,139 @@ public class Driver {
 			}
 		}
 		
-		if (workQueue != null)
+		// still used to apply changes while watching
+		if (workQueue != null && watcher == null)
 		{
 			workQueue.shutdown();
 		}
 
+		if (updater != null && watcher == null)
+		{
+			updater.close();
+		}
+
+		if (argMap.hasFlag("-lockstats") && threadSafe != null)
+		{
+			Path output = argMap.getPath("-lockstats", Path.of("lockstats.json"));
+
+			try
+			{
+				SimpleJsonWriter.asJson(threadSafe.lockStats(), output);
+			}
+
+			catch (IOException e)
+			{
+				System.out.println("Unable to write the lock statistics to " + output);
+			}
+		}
+
+		if (argMap.hasFlag("-stats"))
+		{
+			Path output = argMap.getPath("-stats", Path.of("stats.json"));
+			Map<String, Object> stats = new LinkedHashMap<>();
+
+			if (workQueue != null)
+			{
+				stats.put("workQueue", workQueue.stats());
+			}
+
+			if (threadSafe != null)
+			{
+				stats.put("publish", threadSafe.publishStats());
+			}
+
+			if (argMap.hasFlag("-html"))
+			{
+				stats.put("connectionPool", HttpsFetcher.pool().stats());
+				stats.put("redirects", HtmlFetcher.redirectStats());
+				stats.put("bytes", HttpsFetcher.byteStats());
+			}
+
+			if (scheduler != null)
+			{
+				stats.put("hostScheduler", scheduler.stats());
+			}
+
+			if (checkpoint != null)
+			{
+				stats.put("checkpoint", checkpoint.stats());
+			}
+
+			if (duplicates != null)
+			{
+				stats.put("duplicates", duplicates.stats());
+			}
+
+			if (cache != null)
+			{
+				stats.put("cache", cache.stats());
+			}
+
+			if (robots != null)
+			{
+				stats.put("robots", robots.stats());
+			}
+
+			if (updater != null)
+			{
+				stats.put("updates", updater.stats());
+			}
+
+			if (watcher != null)
+			{
+				stats.put("watch", watcher.stats());
+			}
+
+			try
+			{
+				SimpleJsonWriter.asJson(stats, output);
+			}
+
+			catch (IOException e)
+			{
+				System.out.println("Unable to write the statistics to " + output);
+			}
+		}
+
 		// calculate time elapsed and output
 		Duration elapsed = Duration.between(start, Instant.now());
 		double seconds = (double) elapsed.toMillis() / Duration.ofSeconds(1).toMillis();
 		System.out.printf("Elapsed: %f seconds%n", seconds);
+
+		if (argMap.hasFlag("-server"))
+		{
+			int port = argMap.getInteger("-server", SearchServer.PORT);
+
+			try
+			{
+				if (server == null)
+				{
+					server = new SearchServer(invertedIndex, port, argMap.getInteger("-serverthreads", SearchServer.THREADS));
+					server.start();
+					System.out.println("Serving search requests on port " + server.port());
+				}
+
+				server.join();
+			}
+
+			catch (Exception e)
+			{
+				System.out.println("Unable to run the search server on port " + port);
+			}
+		}
+
+		else if (watcher != null)
+		{
+			try
+			{
+				System.out.println("Watching " + watcher + " for changes");
+				watcher.join();
+			}
+
+			catch (InterruptedException e)
+			{
+				System.out.println("Unable to keep watching " + watcher);
+			}
+		}
 	}
 }
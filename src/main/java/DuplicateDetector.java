@@ -0,0 +1,432 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects pages whose text is the same as, or nearly the same as, a page seen
+ * before. Each page is summarized by a {@link Fingerprint} of its stemmed
+ * words: an exact hash of the words in order, and a SimHash of every run of
+ * {@link #SHINGLE} words. Pages with the same exact hash are duplicates, and
+ * pages whose SimHashes differ in at most {@link #DISTANCE} bits are near
+ * duplicates.
+ *
+ * Near duplicates are found by splitting each SimHash into four 16-bit bands.
+ * Two SimHashes that differ in at most three bits must have at least one band
+ * in common, so only the pages that share a band are compared.
+ *
+ * Fingerprints are kept in fixed-size arrays, so memory stays bounded no matter
+ * how many pages are crawled. Once full, the oldest fingerprints are forgotten
+ * to make room for new ones.
+ *
+ * @see PageIndexer
+ *
+ * @author heidishimek
+ *
+ */
+public class DuplicateDetector
+{
+	/** The default number of fingerprints kept. */
+	public static final int CAPACITY = 1 << 18;
+
+	/** The number of words in each run hashed into the SimHash. */
+	public static final int SHINGLE = 3;
+
+	/** The most bits two SimHashes may differ in for near duplicates. */
+	public static final int DISTANCE = 3;
+
+	/** The number of bands each SimHash is split into. */
+	private static final int BANDS = 4;
+
+	/** The number of bits in each band. */
+	private static final int BAND_BITS = Long.SIZE / BANDS;
+
+	/** Marks the end of a chain. */
+	private static final int NONE = -1;
+
+	/** The number of fingerprints kept, which is a power of two. */
+	private final int capacity;
+
+	/** The exact hash of each fingerprint kept. */
+	private final long[] exact;
+
+	/** The SimHash of each fingerprint kept. */
+	private final long[] simhash;
+
+	/** Whether each fingerprint kept had enough words for a SimHash. */
+	private final boolean[] hasSimhash;
+
+	/** The order each fingerprint was added in, used to spot stale links. */
+	private final long[] added;
+
+	/** The first fingerprint for each exact hash bucket. */
+	private final int[] exactHead;
+
+	/** The next fingerprint in the same exact hash bucket. */
+	private final int[] exactNext;
+
+	/** The first fingerprint with each value of each band. */
+	private final int[][] bandHead;
+
+	/** The next fingerprint with the same value of each band. */
+	private final int[][] bandNext;
+
+	/** The number of fingerprints added so far. */
+	private long count;
+
+	/** The number of pages checked. */
+	private final LongAdder checked;
+
+	/** The number of pages that were exact duplicates. */
+	private final LongAdder exactDuplicates;
+
+	/** The number of pages that were near duplicates. */
+	private final LongAdder nearDuplicates;
+
+	/**
+	 * Initializes a detector that keeps the default number of fingerprints.
+	 */
+	public DuplicateDetector()
+	{
+		this(CAPACITY);
+	}
+
+	/**
+	 * Initializes a detector.
+	 *
+	 * @param capacity the number of fingerprints kept, rounded up to a power of
+	 *   two
+	 */
+	public DuplicateDetector(int capacity)
+	{
+		this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.exact = new long[this.capacity];
+		this.simhash = new long[this.capacity];
+		this.hasSimhash = new boolean[this.capacity];
+		this.added = new long[this.capacity];
+		this.exactHead = new int[this.capacity];
+		this.exactNext = new int[this.capacity];
+		this.bandHead = new int[BANDS][1 << BAND_BITS];
+		this.bandNext = new int[BANDS][this.capacity];
+		this.count = 0;
+		this.checked = new LongAdder();
+		this.exactDuplicates = new LongAdder();
+		this.nearDuplicates = new LongAdder();
+
+		Arrays.fill(exactHead, NONE);
+
+		for (int[] head : bandHead)
+		{
+			Arrays.fill(head, NONE);
+		}
+	}
+
+	/**
+	 * Checks whether the page is a duplicate or near duplicate of a page seen
+	 * before, and if not, remembers it. Pages without any words are never
+	 * duplicates.
+	 *
+	 * @param fingerprint the fingerprint of the page
+	 * @return {@code true} if the page is a duplicate
+	 */
+	public boolean isDuplicate(Fingerprint fingerprint)
+	{
+		if (fingerprint.words() == 0)
+		{
+			return false;
+		}
+
+		checked.increment();
+
+		long hash = fingerprint.exact();
+		long sim = fingerprint.simhash();
+		boolean near = fingerprint.words() >= SHINGLE;
+
+		synchronized (this)
+		{
+			for (int i = exactHead[bucket(hash)]; i != NONE; i = next(exactNext, i))
+			{
+				if (exact[i] == hash)
+				{
+					exactDuplicates.increment();
+					return true;
+				}
+			}
+
+			for (int band = 0; near && band < BANDS; band++)
+			{
+				for (int i = bandHead[band][band(sim, band)]; i != NONE; i = next(bandNext[band], i))
+				{
+					if (hasSimhash[i] && Long.bitCount(simhash[i] ^ sim) <= DISTANCE)
+					{
+						nearDuplicates.increment();
+						return true;
+					}
+				}
+			}
+
+			add(hash, sim, near);
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a fingerprint, replacing the oldest one if full. Must be called
+	 * while synchronized on this detector.
+	 *
+	 * @param hash the exact hash
+	 * @param sim the SimHash
+	 * @param near whether to add the SimHash
+	 */
+	private void add(long hash, long sim, boolean near)
+	{
+		int i = (int) (count & (capacity - 1));
+		added[i] = count++;
+		exact[i] = hash;
+		simhash[i] = sim;
+		hasSimhash[i] = near;
+
+		int bucket = bucket(hash);
+		exactNext[i] = exactHead[bucket];
+		exactHead[bucket] = i;
+
+		for (int band = 0; band < BANDS; band++)
+		{
+			int value = band(sim, band);
+			bandNext[band][i] = near ? bandHead[band][value] : NONE;
+
+			if (near)
+			{
+				bandHead[band][value] = i;
+			}
+		}
+	}
+
+	/**
+	 * Returns the next fingerprint in a chain. Fingerprints are replaced oldest
+	 * first, so once a link points at a slot that was reused for a newer
+	 * fingerprint, everything after it in the chain has been replaced too.
+	 * Links are never removed, so a chain may lead into fingerprints from
+	 * another chain, but those are still compared by value and the chain always
+	 * ends since every step goes to an older fingerprint.
+	 *
+	 * @param next the links of the chain
+	 * @param i the current fingerprint
+	 * @return the next fingerprint, or {@link #NONE} at the end of the chain
+	 */
+	private int next(int[] next, int i)
+	{
+		int j = next[i];
+		return j != NONE && added[j] < added[i] ? j : NONE;
+	}
+
+	/**
+	 * Returns the exact hash bucket of a hash.
+	 *
+	 * @param hash the exact hash
+	 * @return the bucket
+	 */
+	private int bucket(long hash)
+	{
+		return (int) (hash ^ (hash >>> 32)) & (capacity - 1);
+	}
+
+	/**
+	 * Returns one band of a SimHash.
+	 *
+	 * @param sim the SimHash
+	 * @param band the band number
+	 * @return the bits of the band
+	 */
+	private static int band(long sim, int band)
+	{
+		return (int) (sim >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+	}
+
+	/**
+	 * Returns a summary of the duplicates found, suitable for writing as JSON.
+	 *
+	 * @return the duplicate statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public synchronized Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("capacity", capacity);
+		stats.put("kept", Math.min(count, capacity));
+		stats.put("checked", checked.sum());
+		stats.put("exactDuplicates", exactDuplicates.sum());
+		stats.put("nearDuplicates", nearDuplicates.sum());
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * Builds the fingerprint of a page one stemmed word at a time, so a page can
+	 * be fingerprinted as it is indexed without keeping its text.
+	 */
+	public static class Fingerprint
+	{
+		/** The hashes of the last few words, oldest first. */
+		private final long[] recent;
+
+		/** The SimHash votes for each bit. */
+		private final int[] votes;
+
+		/** The exact hash so far. */
+		private long exact;
+
+		/** The number of words so far. */
+		private int words;
+
+		/**
+		 * Initializes a fingerprint with no words.
+		 */
+		public Fingerprint()
+		{
+			this.recent = new long[SHINGLE];
+			this.votes = new int[Long.SIZE];
+			this.exact = 0;
+			this.words = 0;
+		}
+
+		/**
+		 * Builds the fingerprint of a page from its local index, adding its words
+		 * in order of position.
+		 *
+		 * @param local the local index of the page
+		 * @param location the location of the page in the index
+		 * @return the fingerprint
+		 */
+		public static Fingerprint of(InvertedIndex local, String location)
+		{
+			TreeMap<Integer, String> words = new TreeMap<>();
+
+			for (String word : local.getWords())
+			{
+				for (int position : local.getPositions(word, location))
+				{
+					words.put(position, word);
+				}
+			}
+
+			Fingerprint fingerprint = new Fingerprint();
+			words.values().forEach(fingerprint::add);
+			return fingerprint;
+		}
+
+		/**
+		 * Adds the next word of the page.
+		 *
+		 * @param word the stemmed word
+		 */
+		public void add(CharSequence word)
+		{
+			long hash = hash(word);
+			exact = mix(exact * 31 + hash);
+
+			System.arraycopy(recent, 1, recent, 0, SHINGLE - 1);
+			recent[SHINGLE - 1] = hash;
+			words++;
+
+			if (words >= SHINGLE)
+			{
+				long shingle = 0;
+
+				for (long part : recent)
+				{
+					shingle = mix(shingle * 31 + part);
+				}
+
+				for (int bit = 0; bit < Long.SIZE; bit++)
+				{
+					votes[bit] += (shingle >>> bit & 1) == 0 ? -1 : 1;
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of words added.
+		 *
+		 * @return the number of words
+		 */
+		public int words()
+		{
+			return words;
+		}
+
+		/**
+		 * Returns the hash of every word in order.
+		 *
+		 * @return the exact hash
+		 */
+		public long exact()
+		{
+			return mix(exact + words);
+		}
+
+		/**
+		 * Returns the SimHash, where each bit is set if most runs of words had
+		 * that bit set in their hash.
+		 *
+		 * @return the SimHash, or 0 if there are too few words
+		 */
+		public long simhash()
+		{
+			long sim = 0;
+
+			for (int bit = 0; bit < Long.SIZE; bit++)
+			{
+				if (votes[bit] > 0)
+				{
+					sim |= 1L << bit;
+				}
+			}
+
+			return sim;
+		}
+
+		/**
+		 * Returns a 64-bit FNV-1a hash of the characters.
+		 *
+		 * @param word the characters to hash
+		 * @return the hash
+		 */
+		private static long hash(CharSequence word)
+		{
+			long hash = 0xcbf29ce484222325L;
+
+			for (int i = 0; i < word.length(); i++)
+			{
+				hash ^= word.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+
+			return mix(hash);
+		}
+
+		/**
+		 * Scrambles the bits of a hash so every input bit affects every output
+		 * bit, using the finalizer from MurmurHash3.
+		 *
+		 * @param hash the hash to scramble
+		 * @return the scrambled hash
+		 */
+		private static long mix(long hash)
+		{
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+	}
+}
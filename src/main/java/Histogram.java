@@ -0,0 +1,190 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A low-overhead, thread-safe histogram of non-negative long values (such as
+ * durations in nanoseconds or queue depths). Values are counted in power-of-two
+ * buckets, so recording a value is a few atomic increments and percentiles are
+ * accurate to within a factor of two.
+ *
+ * @author heidishimek
+ *
+ */
+public class Histogram
+{
+	/** The number of power-of-two buckets, enough for any long value. */
+	private static final int BUCKETS = 64;
+
+	/** The number of values recorded in each bucket. */
+	private final AtomicLongArray buckets;
+
+	/** The number of values recorded. */
+	private final LongAdder count;
+
+	/** The sum of all values recorded. */
+	private final LongAdder total;
+
+	/** The largest value recorded. */
+	private final AtomicLong max;
+
+	/**
+	 * Initializes an empty histogram.
+	 */
+	public Histogram()
+	{
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new LongAdder();
+		this.total = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a single value. Negative values are recorded as 0.
+	 *
+	 * @param value the value to record
+	 */
+	public void record(long value)
+	{
+		value = Math.max(value, 0);
+
+		buckets.incrementAndGet(bucket(value));
+		count.increment();
+		total.add(value);
+
+		long previous = max.get();
+		while (value > previous && !max.compareAndSet(previous, value))
+		{
+			previous = max.get();
+		}
+	}
+
+	/**
+	 * Returns the bucket a value belongs to. Bucket 0 holds only 0, and bucket
+	 * {@code i} holds values from {@code 2^(i-1)} up to {@code 2^i - 1}.
+	 *
+	 * @param value the non-negative value
+	 * @return the bucket index
+	 */
+	private static int bucket(long value)
+	{
+		return Math.min(Long.SIZE - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return number of values
+	 */
+	public long count()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of all values recorded.
+	 *
+	 * @return sum of values
+	 */
+	public long total()
+	{
+		return total.sum();
+	}
+
+	/**
+	 * Returns the largest value recorded.
+	 *
+	 * @return largest value, or 0 if nothing was recorded
+	 */
+	public long max()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Returns the average of all values recorded.
+	 *
+	 * @return average value, or 0 if nothing was recorded
+	 */
+	public double mean()
+	{
+		long values = count();
+		return values == 0 ? 0 : (double) total() / values;
+	}
+
+	/**
+	 * Returns an upper bound on the value at the given percentile. The result
+	 * is the top of the bucket holding that percentile, capped at the largest
+	 * value recorded.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the approximate value at that percentile, or 0 if nothing was
+	 *         recorded
+	 */
+	public long percentile(double percentile)
+	{
+		long values = count();
+
+		if (values == 0)
+		{
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(values * Math.min(Math.max(percentile, 0), 100) / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += buckets.get(i);
+
+			if (seen >= rank && seen > 0)
+			{
+				long upper = i == 0 ? 0 : (i >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(upper, max());
+			}
+		}
+
+		return max();
+	}
+
+	/**
+	 * Returns a summary of this histogram suitable for writing as JSON. Every
+	 * value is divided by the divisor first, for example 1000 to convert
+	 * nanoseconds into microseconds.
+	 *
+	 * @param divisor the amount to divide each value by
+	 * @return the count, mean, median, 90th and 99th percentiles, and maximum
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> toMap(double divisor)
+	{
+		Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("count", count());
+		summary.put("mean", round(mean() / divisor));
+		summary.put("p50", round(percentile(50) / divisor));
+		summary.put("p90", round(percentile(90) / divisor));
+		summary.put("p99", round(percentile(99) / divisor));
+		summary.put("max", round(max() / divisor));
+		return summary;
+	}
+
+	/**
+	 * Rounds a value to three decimal places for output.
+	 *
+	 * @param value the value to round
+	 * @return the rounded value
+	 */
+	private static double round(double value)
+	{
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return toMap(1).toString();
+	}
+}
@@ -0,0 +1,372 @@
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules requests to web servers politely. Requests wait in a separate queue
+ * for each host, and a host is only given another request once fewer than the
+ * maximum number of requests to it are in progress and the minimum delay since
+ * its last request has passed. Hosts with waiting requests take turns, so one
+ * host with many links cannot starve the others, and the total number of
+ * requests in progress can also be capped.
+ *
+ * A request is made by waiting for {@link #acquire(URL)} to complete, and
+ * must be followed by {@link #release(URL)} once the response has been read.
+ * No thread is used while a request waits for its turn.
+ *
+ * @see WebCrawler
+ *
+ * @author heidishimek
+ *
+ */
+public class HostScheduler
+{
+	/** The default minimum delay between requests to a single host. */
+	public static final Duration MIN_DELAY = Duration.ZERO;
+
+	/** The default number of requests to a single host in progress at once. */
+	public static final int MAX_PER_HOST = ConnectionPool.MAX_PER_HOST;
+
+	/** The minimum delay between requests to a single host, in nanoseconds. */
+	private final long minDelay;
+
+	/** The number of requests to a single host in progress at once. */
+	private final int maxPerHost;
+
+	/** The number of requests to any host in progress at once. */
+	private final int maxActive;
+
+	/** The hosts that have had requests, by host name. */
+	private final HashMap<String, Host> hosts;
+
+	/** The hosts with waiting requests, in the order they take turns. */
+	private final ArrayDeque<Host> turns;
+
+	/** How long requests to any host waited for their turn, in nanoseconds. */
+	private final Histogram waitTime;
+
+	/** The number of requests in progress. */
+	private int active;
+
+	/** When the next wake up to start delayed requests is set for, if any. */
+	private long wakeAt;
+
+	/**
+	 * Initializes a scheduler with the default limits and no cap on the total
+	 * number of requests in progress.
+	 */
+	public HostScheduler()
+	{
+		this(MIN_DELAY, MAX_PER_HOST, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Initializes a scheduler.
+	 *
+	 * @param minDelay the minimum delay between the start of requests to a
+	 *   single host
+	 * @param maxPerHost the number of requests to a single host in progress at
+	 *   once
+	 * @param maxActive the number of requests to any host in progress at once
+	 */
+	public HostScheduler(Duration minDelay, int maxPerHost, int maxActive)
+	{
+		this.minDelay = Math.max(minDelay.toNanos(), 0);
+		this.maxPerHost = Math.max(maxPerHost, 1);
+		this.maxActive = Math.max(maxActive, 1);
+		this.hosts = new HashMap<>();
+		this.turns = new ArrayDeque<>();
+		this.waitTime = new Histogram();
+		this.active = 0;
+		this.wakeAt = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the name requests are scheduled under.
+	 *
+	 * @param url the url to request
+	 * @return the lowercase host name of the url
+	 */
+	private static String key(URL url)
+	{
+		return url.getHost().toLowerCase();
+	}
+
+	/**
+	 * Waits for a turn to request the url. The returned future completes once
+	 * the request may be made, which may be right away.
+	 *
+	 * @param url the url to request
+	 * @return a future that completes when the request may be made
+	 */
+	public CompletableFuture<Void> acquire(URL url)
+	{
+		Request request = new Request(System.nanoTime());
+		List<Request> ready;
+
+		synchronized (this)
+		{
+			Host host = hosts.computeIfAbsent(key(url), Host::new);
+			host.waiting.add(request);
+
+			if (!host.queued)
+			{
+				host.queued = true;
+				turns.add(host);
+			}
+
+			ready = dispatch();
+		}
+
+		start(ready);
+		return request.turn;
+	}
+
+	/**
+	 * Marks a request to the url as finished, which may let waiting requests to
+	 * the same or other hosts start.
+	 *
+	 * @param url the url that was requested
+	 */
+	public void release(URL url)
+	{
+		List<Request> ready;
+
+		synchronized (this)
+		{
+			Host host = hosts.get(key(url));
+
+			if (host == null || host.active == 0)
+			{
+				throw new IllegalStateException("No request to " + url + " is in progress.");
+			}
+
+			host.active--;
+			active--;
+			ready = dispatch();
+		}
+
+		start(ready);
+	}
+
+	/**
+	 * Gives waiting requests their turn, one host at a time, until no more may
+	 * start. If requests are only held back by the delay since the last request
+	 * to their host, a wake up is set for when the first of them may start. Must
+	 * be called while synchronized on this scheduler.
+	 *
+	 * @return the requests that may start
+	 */
+	private List<Request> dispatch()
+	{
+		List<Request> ready = new ArrayList<>();
+		long now = System.nanoTime();
+		long wake = Long.MAX_VALUE;
+		boolean started = true;
+
+		while (started && active < maxActive)
+		{
+			started = false;
+			wake = Long.MAX_VALUE;
+
+			for (int i = turns.size(); i > 0 && active < maxActive; i--)
+			{
+				Host host = turns.poll();
+
+				if (host.active < maxPerHost)
+				{
+					if (now - host.next >= 0)
+					{
+						Request request = host.waiting.poll();
+						long waited = now - request.queued;
+						host.waitTime.record(waited);
+						waitTime.record(waited);
+
+						host.active++;
+						host.next = now + minDelay;
+						active++;
+						ready.add(request);
+						started = true;
+					}
+					else
+					{
+						wake = Math.min(wake, host.next);
+					}
+				}
+
+				if (host.waiting.isEmpty())
+				{
+					host.queued = false;
+				}
+				else
+				{
+					turns.add(host);
+				}
+			}
+		}
+
+		if (wake != Long.MAX_VALUE && wake - wakeAt < 0)
+		{
+			wakeAt = wake;
+			CompletableFuture.runAsync(this::wake, CompletableFuture.delayedExecutor(wake - now, TimeUnit.NANOSECONDS));
+		}
+
+		return ready;
+	}
+
+	/**
+	 * Starts the requests whose turn has come after a delay.
+	 */
+	private void wake()
+	{
+		List<Request> ready;
+
+		synchronized (this)
+		{
+			wakeAt = Long.MAX_VALUE;
+			ready = dispatch();
+		}
+
+		start(ready);
+	}
+
+	/**
+	 * Lets requests start. Called without holding the lock, since whatever
+	 * waits on a request runs right away and may schedule more requests.
+	 *
+	 * @param ready the requests that may start
+	 */
+	private static void start(List<Request> ready)
+	{
+		for (Request request : ready)
+		{
+			request.turn.complete(null);
+		}
+	}
+
+	/**
+	 * Returns the number of requests waiting for their turn.
+	 *
+	 * @return number of waiting requests
+	 */
+	public synchronized int waiting()
+	{
+		int waiting = 0;
+
+		for (Host host : hosts.values())
+		{
+			waiting += host.waiting.size();
+		}
+
+		return waiting;
+	}
+
+	/**
+	 * Returns a summary of how long requests waited for their turn, overall and
+	 * for each host, suitable for writing as JSON. Times are reported in
+	 * milliseconds.
+	 *
+	 * @return the scheduler statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public synchronized Map<String, Object> stats()
+	{
+		Map<String, Object> byHost = new TreeMap<>();
+
+		for (Host host : hosts.values())
+		{
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("active", host.active);
+			summary.put("waiting", host.waiting.size());
+			summary.put("waitMillis", host.waitTime.toMap(1_000_000));
+			byHost.put(host.name, summary);
+		}
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("minDelayMillis", minDelay / 1_000_000);
+		stats.put("maxPerHost", maxPerHost);
+		stats.put("maxActive", maxActive);
+		stats.put("active", active);
+		stats.put("waitMillis", waitTime.toMap(1_000_000));
+		stats.put("hosts", byHost);
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * A request waiting for its turn.
+	 */
+	private static class Request
+	{
+		/** Completes when the request may start. */
+		private final CompletableFuture<Void> turn;
+
+		/** When the request started waiting, in nanoseconds. */
+		private final long queued;
+
+		/**
+		 * Initializes a waiting request.
+		 *
+		 * @param queued when the request started waiting, in nanoseconds
+		 */
+		public Request(long queued)
+		{
+			this.turn = new CompletableFuture<>();
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * The requests to a single host. Only used while synchronized on the
+	 * scheduler, except for the wait times.
+	 */
+	private static class Host
+	{
+		/** The host name. */
+		private final String name;
+
+		/** The requests waiting for their turn, oldest first. */
+		private final ArrayDeque<Request> waiting;
+
+		/** How long requests to this host waited, in nanoseconds. */
+		private final Histogram waitTime;
+
+		/** The number of requests in progress. */
+		private int active;
+
+		/** The earliest time the next request may start, in nanoseconds. */
+		private long next;
+
+		/** Whether this host is waiting for a turn. */
+		private boolean queued;
+
+		/**
+		 * Initializes a host with no requests.
+		 *
+		 * @param name the host name
+		 */
+		public Host(String name)
+		{
+			this.name = name;
+			this.waiting = new ArrayDeque<>();
+			this.waitTime = new Histogram();
+			this.active = 0;
+			this.next = System.nanoTime();
+			this.queued = false;
+		}
+	}
+}
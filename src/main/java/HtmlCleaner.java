@@ -121,7 +121,7 @@ public class HtmlCleaner {
 	 */
 	public static String stripElement(String html, String name) 
 	{		
-		String regex = "(?msi)<" + name + ".*?<\\/" + name + "\\s*>";
+		String regex = "(?msi)<" + name + "[\\s/>].*?<\\/" + name + "\\s*>";
 		Pattern pattern = Pattern.compile(regex);
 		Matcher matcher = pattern.matcher(html);
 		matcher = pattern.matcher(html);
@@ -149,17 +149,18 @@ public class HtmlCleaner {
 
 	/**
 	 * Removes all HTML tags and certain block elements from the provided text.
+	 * This gives the same result as {@link #stripBlockElements(String)},
+	 * {@link #stripTags(String)} and then {@link #stripEntities(String)}, but
+	 * in a single pass over the html.
 	 *
 	 * @see #stripBlockElements(String)
 	 * @see #stripTags(String)
+	 * @see HtmlScanner
 	 * 
 	 * @param html the HTML to strip tags and elements from
 	 * @return text clean of any HTML tags and certain block elements
 	 */
 	public static String stripHtml(String html) {
-		html = stripBlockElements(html);
-		html = stripTags(html);
-		html = stripEntities(html);
-		return html;
+		return HtmlScanner.clean(html);
 	}
 }
\ No newline at end of file
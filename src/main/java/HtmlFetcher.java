@@ -1,16 +1,34 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A specialized version of {@link HttpsFetcher} that follows redirects and
  * returns HTML content if possible.
  *
+ * Permanent redirects (301 and 308) are remembered, so following the same
+ * redirect again (for example, when many pages link to the same redirecting
+ * url) is a map lookup instead of another request. At most
+ * {@link #MAX_CACHED_REDIRECTS} are remembered, and the least recently used
+ * are forgotten first. Temporary redirects are fetched every time, since they
+ * may lead somewhere else next time. Redirects that lead back to a url already
+ * visited are not followed.
+ *
+ * When redirects were followed, the url the last response came from is added
+ * to its headers under {@link #FETCHED_FROM}, so relative links in the page can
+ * be resolved against it.
+ *
  * @see HttpsFetcher
  * 
  * @author CS 212 Software Development
@@ -18,6 +36,21 @@ import java.util.Map;
  * @version Spring 2021
  */
 public class HtmlFetcher {
+	/** The maximum number of redirects remembered. */
+	public static final int MAX_CACHED_REDIRECTS = 10_000;
+
+	/** The pseudo header holding the url the last response came from. */
+	public static final String FETCHED_FROM = "Fetched-From";
+
+	/** The location each remembered redirect leads to, by url, least recently used first. */
+	private static final Map<String, URL> redirectCache = Collections.synchronizedMap(new RedirectCache());
+
+	/** The number of redirects followed using the cache. */
+	private static final LongAdder cachedRedirects = new LongAdder();
+
+	/** The number of redirects followed by fetching. */
+	private static final LongAdder fetchedRedirects = new LongAdder();
+
 	/**
 	 * Returns {@code true} if and only if there is a "Content-Type" header and
 	 * the first value of that header starts with the value "text/html"
@@ -44,12 +77,18 @@ public class HtmlFetcher {
 	 */
 	public static int getStatusCode(Map<String, List<String>> headers) 
 	{
-		if (headers.containsKey(null))
+		if (headers.containsKey(null) && !headers.get(null).isEmpty())
 		{
-			String status = headers.get(null).toString();
-			String[] code = status.split(" ");
-			int statusCode = Integer.parseInt(code[1]);
-			return statusCode;
+			String[] code = headers.get(null).get(0).split(" ");
+
+			try
+			{
+				return code.length > 1 ? Integer.parseInt(code[1]) : -1;
+			}
+			catch (NumberFormatException e)
+			{
+				return -1;
+			}
 		}
 		return -1;
 	}
@@ -84,44 +123,368 @@ public class HtmlFetcher {
 	 * @return the html or {@code null} if unable to fetch the resource or the
 	 *         resource is not html
 	 *
-	 * @see HttpsFetcher#openConnection(URL)
-	 * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-	 * @see HttpsFetcher#getHeaderFields(BufferedReader)
-	 * @see HttpsFetcher#getContent(BufferedReader)
-	 *
-	 * @see String#join(CharSequence, CharSequence...)
+	 * @see HttpsFetcher#fetchURL(URL)
+	 * @see #follow(URL, int, Fetcher)
 	 *
 	 * @see #isHtml(Map)
 	 * @see #isRedirect(Map)
 	 */
 	public static String fetch(URL url, int redirects) 
 	{		
-		Map<String,List<String>> newUrl = new HashMap<>();
+		Map<String,List<String>> newUrl;
 		try 
 		{
-			newUrl = HttpsFetcher.fetchURL(url);
+			newUrl = follow(url, redirects, HttpsFetcher::fetchURL);
 		} 
 		catch (IOException e) 
 		{
-			e.printStackTrace();
+			// pages that cannot be fetched are skipped rather than crawled
+			return null;
 		}
 		
-		int statusCode = getStatusCode(newUrl);
-		String output = null;
-		
-		if (redirects < 0)
+		return newUrl == null ? null : getHtml(newUrl);
+	}
+
+	/**
+	 * Fetches the url, following up to the given number of redirects, and
+	 * returns the headers of the last response. Redirects remembered from
+	 * earlier fetches are followed without fetching them again.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param fetcher fetches the headers (and possibly content) of a url
+	 * @return the headers of the last response, or {@code null} if there were
+	 *         too many redirects or they lead back to a url already visited
+	 * @throws IOException if unable to fetch a url
+	 */
+	private static Map<String, List<String>> follow(URL url, int redirects, Fetcher fetcher) throws IOException
+	{
+		Set<String> visited = new HashSet<>();
+		URL current = url;
+
+		while (redirects >= 0 && visited.add(current.toString()))
+		{
+			URL next = redirectCache.get(current.toString());
+
+			if (next != null)
+			{
+				cachedRedirects.increment();
+			}
+			else
+			{
+				Map<String, List<String>> headers = fetcher.fetch(current);
+				next = isRedirect(headers) ? redirected(current, headers) : null;
+
+				if (next == null)
+				{
+					return fetchedFrom(url, current, headers);
+				}
+			}
+
+			current = next;
+			redirects--;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds the url the last response came from to its headers, if redirects
+	 * were followed to get there.
+	 *
+	 * @param url the url that was fetched
+	 * @param current the url the last response came from
+	 * @param headers the headers of the last response
+	 * @return the headers
+	 */
+	private static Map<String, List<String>> fetchedFrom(URL url, URL current, Map<String, List<String>> headers)
+	{
+		if (current.toString().equals(url.toString()))
+		{
+			return headers;
+		}
+
+		Map<String, List<String>> copy = new HashMap<>(headers);
+		copy.put(FETCHED_FROM, List.of(current.toString()));
+		return copy;
+	}
+
+	/**
+	 * Returns the url a response came from, which differs from the url fetched
+	 * if redirects were followed.
+	 *
+	 * @param url the url that was fetched
+	 * @param headers the headers of the last response
+	 * @return the url the response came from
+	 *
+	 * @see #FETCHED_FROM
+	 */
+	public static URL fetchedFrom(URL url, Map<String, List<String>> headers)
+	{
+		List<String> values = headers.get(FETCHED_FROM);
+
+		try
 		{
-			output = null;
+			return values == null || values.isEmpty() ? url : LinkParser.parse(values.get(0));
 		}
-		else
+		catch (MalformedURLException e)
 		{
-			if (statusCode == 200 && isHtml(newUrl))
+			return url;
+		}
+	}
+
+	/**
+	 * Resolves the location of a redirect, relative to the url that was
+	 * redirected, and remembers it if the redirect is permanent.
+	 *
+	 * @param url the url that was redirected
+	 * @param headers the headers of the redirect
+	 * @return the normalized location, or {@code null} if it is not a valid
+	 *         http(s) url
+	 */
+	private static URL redirected(URL url, Map<String, List<String>> headers)
+	{
+		try
+		{
+			URL location = LinkParser.resolve(url, headers.get("Location").get(0));
+
+			if (!LinkParser.isHttp(location))
+			{
+				return null;
+			}
+
+			fetchedRedirects.increment();
+			int status = getStatusCode(headers);
+
+			if (status == 301 || status == 308)
 			{
-				List<String> list = newUrl.get("Content");
-				output = String.join(System.lineSeparator(), list);
+				redirectCache.put(url.toString(), location);
 			}
+
+			return location;
+		}
+		catch (MalformedURLException | URISyntaxException e)
+		{
+			return null;
 		}
-		return output;
+	}
+
+	/**
+	 * Forgets every remembered redirect.
+	 */
+	public static void clearRedirects()
+	{
+		redirectCache.clear();
+	}
+
+	/**
+	 * Returns how many redirects were followed by fetching and using the cache,
+	 * suitable for writing as JSON.
+	 *
+	 * @return the redirect statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public static Map<String, Object> redirectStats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("cached", redirectCache.size());
+		stats.put("fetched", fetchedRedirects.sum());
+		stats.put("hits", cachedRedirects.sum());
+		return stats;
+	}
+
+	/**
+	 * Remembers up to {@link #MAX_CACHED_REDIRECTS} redirects, forgetting the
+	 * least recently used one once full.
+	 */
+	private static class RedirectCache extends LinkedHashMap<String, URL>
+	{
+		/** Unused */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Initializes an empty cache, ordered by access.
+		 */
+		private RedirectCache()
+		{
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, URL> eldest)
+		{
+			return size() > MAX_CACHED_REDIRECTS;
+		}
+	}
+
+	/**
+	 * Fetches the headers (and possibly content) of a url.
+	 */
+	@FunctionalInterface
+	private interface Fetcher
+	{
+		/**
+		 * Fetches the headers (and possibly content) of the url.
+		 *
+		 * @param url the url to fetch
+		 * @return the headers
+		 * @throws IOException if unable to fetch the url
+		 */
+		public Map<String, List<String>> fetch(URL url) throws IOException;
+	}
+
+	/**
+	 * Fetches the resource at the URL using the same rules as
+	 * {@link #fetch(URL, int)}, but writes the html to the writer as it arrives
+	 * instead of returning it as a string. At most the maximum number of bytes
+	 * are read; the rest of a larger page is ignored.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param maxBytes the maximum number of bytes of html to read
+	 * @param html the writer for the html
+	 * @return {@code true} if the resource is html and it was written
+	 *
+	 * @see HttpsFetcher#fetchURL(URL, java.util.function.Predicate, long, Writer)
+	 */
+	public static boolean fetch(URL url, int redirects, long maxBytes, Writer html)
+	{
+		Map<String, List<String>> headers = fetch(url, redirects, maxBytes, html, Map.of());
+		return headers != null && isOkHtml(headers);
+	}
+
+	/**
+	 * Fetches the resource at the URL like
+	 * {@link #fetch(URL, int, long, Writer)}, but sends the extra request
+	 * headers with every request and returns the headers of the last response.
+	 * This allows conditional requests, where the last response may be
+	 * "304 Not Modified" instead of the html.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @param maxBytes the maximum number of bytes of html to read
+	 * @param html the writer for the html, which is only written to if the
+	 *   last response is html
+	 * @param request the extra request headers to send
+	 * @return the headers of the last response, or {@code null} if unable to
+	 *         fetch the resource
+	 *
+	 * @see HttpCache.Entry#conditions()
+	 */
+	public static Map<String, List<String>> fetch(URL url, int redirects, long maxBytes, Writer html, Map<String, String> request)
+	{
+		try
+		{
+			return follow(url, redirects,
+					next -> HttpsFetcher.fetchURL(next, request, HtmlFetcher::isOkHtml, maxBytes, html));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the status code is 200 and the content type is
+	 * HTML.
+	 *
+	 * @param headers the HTTP/1.1 headers to parse
+	 * @return {@code true} if the response is html
+	 */
+	public static boolean isOkHtml(Map<String, List<String>> headers)
+	{
+		return getStatusCode(headers) == 200 && isHtml(headers);
+	}
+
+	/**
+	 * Returns the content of a response as a single string if the status code
+	 * is 200 and the content type is HTML.
+	 *
+	 * @param headers the headers and content fetched
+	 * @return the html or {@code null} if the response is not html
+	 */
+	public static String getHtml(Map<String, List<String>> headers)
+	{
+		if (isOkHtml(headers))
+		{
+			List<String> list = headers.get("Content");
+			return String.join(System.lineSeparator(), list);
+		}
+		return null;
+	}
+
+	/**
+	 * Fetches the resource at the URL asynchronously, using the same rules as
+	 * {@link #fetch(URL, int)}. The calling thread is not blocked while waiting
+	 * for the response.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future that completes with the html, or with {@code null} if
+	 *         unable to fetch the resource or the resource is not html
+	 *
+	 * @see HttpsFetcher#fetchURLAsync(URL)
+	 */
+	public static CompletableFuture<String> fetchAsync(URL url, int redirects)
+	{
+		return fetchHeadersAsync(url, redirects).thenApply(headers -> headers == null ? null : getHtml(headers));
+	}
+
+	/**
+	 * Fetches the resource at the URL asynchronously, following redirects the
+	 * same way as {@link #fetchAsync(URL, int)}, and returns the headers and
+	 * content of the last response.
+	 *
+	 * @param url the url to fetch
+	 * @param redirects the number of times to follow redirects
+	 * @return a future that completes with the headers of the last response,
+	 *         including its content under "Content", or with {@code null} if
+	 *         unable to fetch the resource
+	 *
+	 * @see #getHtml(Map)
+	 * @see #fetchedFrom(URL, Map)
+	 */
+	public static CompletableFuture<Map<String, List<String>>> fetchHeadersAsync(URL url, int redirects)
+	{
+		return fetchAsync(url, url, redirects, new HashSet<>());
+	}
+
+	/**
+	 * Fetches the resource at the URL asynchronously, following redirects the
+	 * same way as {@link #follow(URL, int, Fetcher)}.
+	 *
+	 * @param start the url first fetched
+	 * @param url the url to fetch
+	 * @param redirects the number of times left to follow redirects
+	 * @param visited the urls already visited while following redirects
+	 * @return a future that completes with the headers of the last response,
+	 *         or with {@code null} if unable to fetch the resource
+	 */
+	private static CompletableFuture<Map<String, List<String>>> fetchAsync(URL start, URL url, int redirects, Set<String> visited)
+	{
+		if (redirects < 0 || !visited.add(url.toString()))
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+
+		URL cached = redirectCache.get(url.toString());
+
+		if (cached != null)
+		{
+			cachedRedirects.increment();
+			return fetchAsync(start, cached, redirects - 1, visited);
+		}
+
+		return HttpsFetcher.fetchURLAsync(url)
+				.thenCompose(headers -> {
+					URL next = isRedirect(headers) ? redirected(url, headers) : null;
+
+					return next == null
+							? CompletableFuture.completedFuture(fetchedFrom(start, url, headers))
+							: fetchAsync(start, next, redirects - 1, visited);
+				})
+				.exceptionally(e -> null);
 	}
 
 	/**
@@ -137,7 +500,7 @@ public class HtmlFetcher {
 	 */
 	public static String fetch(String url, int redirects) {
 		try {
-			return fetch(new URL(url), redirects);
+			return fetch(LinkParser.parse(url), redirects);
 		}
 		catch (MalformedURLException e) {
 			return null;
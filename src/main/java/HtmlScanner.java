@@ -0,0 +1,875 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.apache.commons.text.translate.CharSequenceTranslator;
+
+/**
+ * Cleans HTML into plain text in a single pass over its characters, which may
+ * be written a piece at a time as they arrive. Comments and the head, style,
+ * script, noscript, iframe and svg elements are dropped, tags are removed, and
+ * entities are decoded, giving the same text as
+ * {@link HtmlCleaner#stripHtml(String)} without a separate scan (and new
+ * string) for each step.
+ *
+ * An element only opens where its whole name is followed by whitespace, a
+ * {@code /} or a {@code >}, so {@code <header>} does not open a head element.
+ * A comment or element that is never closed is not dropped; its opening tag is
+ * removed like any other tag and the rest is scanned again. At most
+ * {@link #MAX_PENDING} characters of a comment or element are kept for this at
+ * a time, and any discarded beyond that are dropped even if it is never
+ * closed. Comments and elements inside a tag, and comments inside an element,
+ * are dropped before the tag or element around them, as are comments and
+ * elements right after a tag, so a {@code >} that then follows is removed
+ * with the tag. Otherwise, where comments and elements overlap, whichever
+ * opens first is dropped.
+ *
+ * The cleaned text and the tags that were removed are passed to a
+ * {@link Handler}. Text may be split between calls anywhere, even within a
+ * word, and is buffered so it is not interleaved exactly with the tags.
+ *
+ * @see HtmlCleaner
+ *
+ * @author heidishimek
+ *
+ */
+public class HtmlScanner extends Writer
+{
+	/** The elements dropped along with everything inside them. */
+	public static final String[] BLOCK_ELEMENTS = { "head", "style", "script", "noscript", "iframe", "svg" };
+
+	/** The most characters of a comment or element kept until it is closed. */
+	public static final int MAX_PENDING = 1 << 20;
+
+	/** The characters that open a comment after the {@code <} character. */
+	private static final String COMMENT = "!--";
+
+	/** The constructs that may open after a {@code <} character. */
+	private static final String[] OPENERS = { "head", "style", "script", "noscript", "iframe", "svg", COMMENT };
+
+	/** The index of the comment opener. */
+	private static final int COMMENT_OPENER = OPENERS.length - 1;
+
+	/** Every opener, as bits. */
+	private static final int ALL = (1 << OPENERS.length) - 1;
+
+	/** The HTML 5 entity removed instead of decoded, as in HTML 4. */
+	private static final String DASH = "&dash;";
+
+	/** The amount of undecoded text buffered before it is decoded. */
+	private static final int BUFFER = 8192;
+
+	/** Decodes HTML 4 entities. */
+	private static final CharSequenceTranslator ENTITIES = StringEscapeUtils.UNESCAPE_HTML4;
+
+	/**
+	 * The states of the scanner.
+	 */
+	private enum State
+	{
+		/** Scanning text. */
+		TEXT,
+		/** Inside a tag, or after a {@code <} that may open a comment or element. */
+		TAG,
+		/** After the {@code >} that ends a tag, which may be followed by another. */
+		TAG_END,
+		/** Inside a comment. */
+		COMMENT,
+		/** Inside an element being dropped. */
+		ELEMENT
+	}
+
+	/** Receives the text and tags. */
+	private final Handler handler;
+
+	/** The current state. */
+	private State state;
+
+	/** The characters of the tag, comment or element being scanned. */
+	private final StringBuilder pending;
+
+	/** Text that has not been decoded yet. */
+	private final StringBuilder text;
+
+	/** Decoded text that has not been passed to the handler yet. */
+	private final StringBuilder decoded;
+
+	/** Receives each decoded entity. */
+	private final StringWriter entity;
+
+	/** Where the {@code <} that may open a comment or element is, or -1. */
+	private int openAt;
+
+	/** The openers that still match after that {@code <}, as bits. */
+	private int candidates;
+
+	/** The number of characters of the openers matched so far. */
+	private int opened;
+
+	/** The openers known to never be closed, as bits. */
+	private int unclosed;
+
+	/** The opener of the comment or element being dropped. */
+	private int kind;
+
+	/** The closing tag of the element being dropped, such as {@code </head}. */
+	private String closer;
+
+	/** The number of characters of the closing tag or comment matched so far. */
+	private int matched;
+
+	/** The state to return to after dropping a nested comment or element. */
+	private State outer;
+
+	/** Where the nested comment or element starts in the pending characters. */
+	private int outerAt;
+
+	/** The opener of the element a comment is nested in. */
+	private int outerKind;
+
+	/** Where the tag ends in the pending characters, once it has a {@code >}. */
+	private int tagEnd;
+
+	/** The number of characters of {@link #DASH} matched in the decoded text. */
+	private int dash;
+
+	/**
+	 * Initializes a scanner.
+	 *
+	 * @param handler receives the text and tags
+	 */
+	public HtmlScanner(Handler handler)
+	{
+		this.handler = handler;
+		this.state = State.TEXT;
+		this.pending = new StringBuilder();
+		this.text = new StringBuilder();
+		this.decoded = new StringBuilder();
+		this.entity = new StringWriter();
+		this.openAt = -1;
+	}
+
+	/**
+	 * Cleans the html into plain text.
+	 *
+	 * @param html the html to clean
+	 * @return the cleaned text
+	 */
+	public static String clean(String html)
+	{
+		StringBuilder cleaned = new StringBuilder(html.length() / 2);
+		HtmlScanner scanner = new HtmlScanner(cleaned::append);
+		scanner.scan(html);
+		scanner.close();
+		return cleaned.toString();
+	}
+
+	/**
+	 * Scans the next characters of the html.
+	 *
+	 * @param html the next characters
+	 */
+	public void scan(CharSequence html)
+	{
+		scan(html, 0, html.length());
+	}
+
+	/**
+	 * Scans the next characters of the html, from the start index up to the end
+	 * index. Runs of characters that cannot change the state are copied at once
+	 * rather than one at a time.
+	 *
+	 * @param html the next characters
+	 * @param start the index to start at
+	 * @param end the index to end before
+	 */
+	private void scan(CharSequence html, int start, int end)
+	{
+		int i = start;
+
+		while (i < end)
+		{
+			int stop = skip(html, i, end);
+
+			if (stop < end)
+			{
+				next(html.charAt(stop));
+			}
+
+			i = stop + 1;
+		}
+
+		if (text.length() >= BUFFER)
+		{
+			flushText(false);
+		}
+	}
+
+	/**
+	 * Copies the run of characters from the start index that cannot change the
+	 * current state, and returns the index of the first one that might.
+	 *
+	 * @param html the characters
+	 * @param start the index to start at
+	 * @param end the index to end before
+	 * @return the index of the next character to scan, or the end index
+	 */
+	private int skip(CharSequence html, int start, int end)
+	{
+		int stop = start;
+
+		switch (state)
+		{
+			case TEXT:
+				stop = find(html, '<', start, end);
+				text.append(html, start, stop);
+				break;
+
+			case TAG:
+				if (openAt < 0)
+				{
+					while (stop < end && html.charAt(stop) != '<' && html.charAt(stop) != '>')
+					{
+						stop++;
+					}
+					pending.append(html, start, stop);
+				}
+				break;
+
+			case COMMENT:
+				if (matched == 0)
+				{
+					stop = find(html, '-', start, end);
+					pending.append(html, start, stop);
+					limit();
+				}
+				break;
+
+			case ELEMENT:
+				if (matched == 0 && openAt < 0)
+				{
+					stop = find(html, '<', start, end);
+					pending.append(html, start, stop);
+					limit();
+				}
+				break;
+
+			default:
+				break;
+		}
+
+		return stop;
+	}
+
+	/**
+	 * Discards the characters of the comment or element being dropped once
+	 * there are more than {@link #MAX_PENDING}, keeping any tag or element it
+	 * is nested in. Those characters are not scanned again if it is never
+	 * closed.
+	 */
+	private void limit()
+	{
+		int from = outer == null ? 0 : outerAt;
+
+		if (pending.length() - from > MAX_PENDING)
+		{
+			pending.setLength(from);
+		}
+	}
+
+	/**
+	 * Finds the next occurrence of a character.
+	 *
+	 * @param chars the characters to search
+	 * @param c the character to find
+	 * @param start the index to start at
+	 * @param end the index to end before
+	 * @return the index of the character, or the end index if not found
+	 */
+	private static int find(CharSequence chars, char c, int start, int end)
+	{
+		if (chars instanceof String)
+		{
+			int index = ((String) chars).indexOf(c, start);
+			return index < 0 || index > end ? end : index;
+		}
+
+		for (int i = start; i < end; i++)
+		{
+			if (chars.charAt(i) == c)
+			{
+				return i;
+			}
+		}
+
+		return end;
+	}
+
+	@Override
+	public void write(char[] chars, int offset, int length)
+	{
+		scan(new String(chars, offset, length));
+	}
+
+	@Override
+	public void write(String chars, int offset, int length)
+	{
+		scan(chars, offset, offset + length);
+	}
+
+	@Override
+	public void flush()
+	{
+		flushText(false);
+	}
+
+	/**
+	 * Finishes scanning, and passes any remaining text to the handler. Nothing
+	 * more should be written afterwards.
+	 */
+	@Override
+	public void close()
+	{
+		switch (state)
+		{
+			case TAG:
+				// without a closing > this was never a tag
+				text.append(pending);
+				pending.setLength(0);
+				state = State.TEXT;
+				break;
+
+			case TAG_END:
+				if (pending.length() > tagEnd)
+				{
+					split();
+					close();
+					return;
+				}
+
+				tag();
+				break;
+
+			case COMMENT:
+			case ELEMENT:
+				rescan();
+				close();
+				return;
+
+			default:
+				break;
+		}
+
+		flushText(true);
+
+		if (dash > 0)
+		{
+			decoded.append(DASH, 0, dash);
+			dash = 0;
+		}
+
+		if (decoded.length() > 0)
+		{
+			handler.text(decoded);
+			decoded.setLength(0);
+		}
+
+		handler.end();
+	}
+
+	/**
+	 * Scans the next character.
+	 *
+	 * @param c the next character
+	 */
+	private void next(char c)
+	{
+		switch (state)
+		{
+			case TEXT:
+				if (c == '<')
+				{
+					pending.append(c);
+					state = State.TAG;
+					detect(c, ALL);
+				}
+				else
+				{
+					text.append(c);
+				}
+				break;
+
+			case TAG:
+				pending.append(c);
+
+				if (!detect(c, ALL) && c == '>')
+				{
+					state = State.TAG_END;
+					tagEnd = pending.length();
+				}
+				break;
+
+			case TAG_END:
+				if (pending.length() == tagEnd && c != '<')
+				{
+					if (c == '>')
+					{
+						pending.append(c);
+						tag();
+					}
+					else
+					{
+						tag();
+						next(c);
+					}
+				}
+				else
+				{
+					// a comment or element right after the tag is dropped first
+					pending.append(c);
+
+					if (!detect(c, ALL) && openAt < 0)
+					{
+						split();
+					}
+				}
+				break;
+
+			case COMMENT:
+				pending.append(c);
+
+				if (c == '>' && matched >= 2)
+				{
+					drop();
+				}
+				else
+				{
+					matched = c == '-' ? matched + 1 : 0;
+				}
+				break;
+
+			case ELEMENT:
+				pending.append(c);
+
+				if (!detect(c, outer == null ? 1 << COMMENT_OPENER : 0))
+				{
+					closing(c);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Matches the next character against the openers of comments and elements,
+	 * which start with a {@code <} character. The name of an element must be
+	 * followed by whitespace, a {@code /} or a {@code >}, which is matched as
+	 * part of its opener. Once an opener matches, starts
+	 * dropping that comment or element. Comments and elements opened inside a
+	 * tag (or comments inside an element) are dropped first, as if they were
+	 * never there.
+	 *
+	 * @param c the next character
+	 * @param mask the openers to match, as bits
+	 * @return {@code true} if a comment or element was opened
+	 */
+	private boolean detect(char c, int mask)
+	{
+		if (c == '<')
+		{
+			candidates = mask & ~unclosed;
+			openAt = candidates == 0 ? -1 : pending.length() - 1;
+			opened = 0;
+			return false;
+		}
+
+		if (openAt < 0)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < OPENERS.length; i++)
+		{
+			if ((candidates & (1 << i)) != 0 && !matches(i, c))
+			{
+				candidates &= ~(1 << i);
+			}
+		}
+
+		opened++;
+
+		for (int i = 0; i < OPENERS.length && candidates != 0; i++)
+		{
+			if ((candidates & (1 << i)) != 0 && length(i) == opened)
+			{
+				if (openAt > 0)
+				{
+					outer = state;
+					outerAt = openAt;
+					outerKind = kind;
+				}
+
+				kind = i;
+				matched = 0;
+				openAt = -1;
+
+				if (i == COMMENT_OPENER)
+				{
+					state = State.COMMENT;
+				}
+				else
+				{
+					state = State.ELEMENT;
+					closer = "</" + OPENERS[i];
+				}
+				return true;
+			}
+		}
+
+		if (candidates == 0)
+		{
+			openAt = -1;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks whether the next character continues an opener.
+	 *
+	 * @param i the index of the opener
+	 * @param c the next character
+	 * @return {@code true} if the opener still matches
+	 */
+	private boolean matches(int i, char c)
+	{
+		if (opened < OPENERS[i].length())
+		{
+			return OPENERS[i].charAt(opened) == lower(c);
+		}
+
+		return isWhitespace(c) || c == '/' || c == '>';
+	}
+
+	/**
+	 * Returns the number of characters matched by an opener after the
+	 * {@code <} character, including the character after the name of an
+	 * element.
+	 *
+	 * @param i the index of the opener
+	 * @return the length of the opener
+	 */
+	private static int length(int i)
+	{
+		return i == COMMENT_OPENER ? OPENERS[i].length() : OPENERS[i].length() + 1;
+	}
+
+	/**
+	 * Matches the next character inside an element against its closing tag,
+	 * which may have whitespace before the {@code >}.
+	 *
+	 * @param c the next character
+	 */
+	private void closing(char c)
+	{
+		if (matched == closer.length())
+		{
+			if (c == '>')
+			{
+				drop();
+				return;
+			}
+
+			if (isWhitespace(c))
+			{
+				return;
+			}
+		}
+		else if (lower(c) == closer.charAt(matched))
+		{
+			matched++;
+			return;
+		}
+
+		matched = c == '<' ? 1 : 0;
+	}
+
+	/**
+	 * Drops the comment or element that was just closed, and returns to the tag
+	 * or element it was nested in (if any).
+	 */
+	private void drop()
+	{
+		if (outer == null)
+		{
+			pending.setLength(0);
+			state = State.TEXT;
+			return;
+		}
+
+		pending.setLength(outerAt);
+		state = outer;
+		outer = null;
+		matched = 0;
+
+		if (state == State.ELEMENT)
+		{
+			kind = outerKind;
+			closer = "</" + OPENERS[kind];
+		}
+	}
+
+	/**
+	 * Called when the characters after a tag turn out not to open a comment or
+	 * element. Removes the tag, and then scans those characters again.
+	 */
+	private void split()
+	{
+		String rest = pending.substring(tagEnd);
+		pending.setLength(tagEnd);
+		tag();
+
+		for (int i = 0; i < rest.length(); i++)
+		{
+			next(rest.charAt(i));
+		}
+	}
+
+	/**
+	 * Removes the tag that was just closed, passing it to the handler.
+	 */
+	private void tag()
+	{
+		flushText(false);
+		handler.tag(pending);
+		pending.setLength(0);
+		state = State.TEXT;
+		openAt = -1;
+	}
+
+	/**
+	 * Called when the comment or element being scanned is never closed, so it
+	 * should not be dropped after all. Everything since the first {@code <} is
+	 * scanned again, without matching that kind of comment or element; any
+	 * later ones cannot be closed either.
+	 */
+	private void rescan()
+	{
+		unclosed |= 1 << kind;
+
+		String rest = pending.toString();
+		pending.setLength(0);
+		state = State.TEXT;
+		outer = null;
+		openAt = -1;
+
+		for (int i = 0; i < rest.length(); i++)
+		{
+			next(rest.charAt(i));
+		}
+	}
+
+	/**
+	 * Decodes the buffered text and passes it to the handler. Unless finishing,
+	 * a trailing entity that may not be complete yet is kept in the buffer.
+	 *
+	 * @param finishing whether there is no more text
+	 */
+	private void flushText(boolean finishing)
+	{
+		int end = text.length();
+
+		if (!finishing)
+		{
+			int amp = text.lastIndexOf("&");
+
+			if (amp >= 0 && isPartialEntity(amp + 1))
+			{
+				end = amp;
+			}
+		}
+
+		decode(end);
+		text.delete(0, end);
+
+		if (decoded.length() > 0)
+		{
+			handler.text(decoded);
+			decoded.setLength(0);
+		}
+	}
+
+	/**
+	 * Checks whether the text from the start index onwards may still become an
+	 * entity once more text arrives.
+	 *
+	 * @param start the index after the {@code &} character
+	 * @return {@code true} if only entity characters follow
+	 */
+	private boolean isPartialEntity(int start)
+	{
+		for (int i = start; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+
+			if (!(c == '#' || (c >= '0' && c <= '9') || (lower(c) >= 'a' && lower(c) <= 'z')))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Decodes the entities in the buffered text up to the end index.
+	 *
+	 * @param end the index to decode up to
+	 */
+	private void decode(int end)
+	{
+		int start = 0;
+
+		while (start < end)
+		{
+			int amp = text.indexOf("&", start);
+
+			if (amp < 0 || amp >= end)
+			{
+				emit(text, start, end);
+				return;
+			}
+
+			emit(text, start, amp);
+			int consumed;
+
+			try
+			{
+				consumed = ENTITIES.translate(text, amp, entity);
+			}
+			catch (IOException e)
+			{
+				// a string writer never throws, so this should not happen
+				throw new UncheckedIOException(e);
+			}
+
+			if (consumed == 0)
+			{
+				emit("&", 0, 1);
+				start = amp + 1;
+			}
+			else
+			{
+				StringBuffer buffer = entity.getBuffer();
+				emit(buffer, 0, buffer.length());
+				buffer.setLength(0);
+				start = amp + consumed;
+			}
+		}
+	}
+
+	/**
+	 * Appends decoded text, removing every {@code &dash;} entity (which is not
+	 * part of HTML 4) as it goes.
+	 *
+	 * @param chars the decoded text
+	 * @param start the index to start at
+	 * @param end the index to end before
+	 */
+	private void emit(CharSequence chars, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (dash == 0)
+			{
+				int amp = find(chars, '&', i, end);
+				decoded.append(chars, i, amp);
+				i = amp;
+
+				if (i == end)
+				{
+					return;
+				}
+			}
+
+			char c = chars.charAt(i);
+
+			if (c == DASH.charAt(dash))
+			{
+				dash = dash + 1 == DASH.length() ? 0 : dash + 1;
+				continue;
+			}
+
+			if (dash > 0)
+			{
+				decoded.append(DASH, 0, dash);
+				dash = 0;
+
+				if (c == '&')
+				{
+					dash = 1;
+					continue;
+				}
+			}
+
+			decoded.append(c);
+		}
+	}
+
+	/**
+	 * Converts an ASCII letter to lowercase, the same way case-insensitive
+	 * regular expressions do by default.
+	 *
+	 * @param c the character
+	 * @return the lowercase character
+	 */
+	private static char lower(char c)
+	{
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * Checks for the whitespace characters matched by {@code \s} in regular
+	 * expressions by default.
+	 *
+	 * @param c the character
+	 * @return {@code true} if the character is whitespace
+	 */
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	/**
+	 * Receives the cleaned text and removed tags from a scanner.
+	 */
+	@FunctionalInterface
+	public interface Handler
+	{
+		/**
+		 * Receives the next piece of cleaned text. The text is only valid
+		 * during the call.
+		 *
+		 * @param text the cleaned text
+		 */
+		public void text(CharSequence text);
+
+		/**
+		 * Receives a tag that was removed, from its {@code <} to its {@code >}.
+		 * The tag is only valid during the call.
+		 *
+		 * @param tag the removed tag
+		 */
+		public default void tag(CharSequence tag)
+		{
+		}
+
+		/**
+		 * Called once the scanner is closed, after the last of the text.
+		 */
+		public default void end()
+		{
+		}
+	}
+}
@@ -0,0 +1,318 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A cache of crawled pages on local disk, so a page that has not changed since
+ * the last crawl does not have to be downloaded, cleaned and stemmed again.
+ *
+ * Each page is stored under its normalized url with the "ETag" and
+ * "Last-Modified" headers it was served with, along with its links and the
+ * stemmed words and positions extracted from it. When the page is crawled
+ * again, those headers are sent back as "If-None-Match" and
+ * "If-Modified-Since". If the server answers "304 Not Modified", the stored
+ * links and words are used instead of the page.
+ *
+ * Pages served without either header cannot be checked, so they are not
+ * stored. The cache is only an optimization: any error reading or writing it
+ * is treated as a cache miss.
+ *
+ * @see WebCrawler
+ *
+ * @author heidishimek
+ *
+ */
+public class HttpCache
+{
+	/** Identifies a cache entry. */
+	private static final int MAGIC = 0x48434143;
+
+	/** The version of the entry format. */
+	private static final int VERSION = 2;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The directory the entries are stored in. */
+	private final Path directory;
+
+	/** The number of urls looked up. */
+	private final LongAdder lookups;
+
+	/** The number of lookups that found an entry. */
+	private final LongAdder found;
+
+	/** The number of entries used because the page had not changed. */
+	private final LongAdder notModified;
+
+	/** The number of entries stored. */
+	private final LongAdder stored;
+
+	/**
+	 * Opens a cache directory, creating it if needed. Entries stored by earlier
+	 * crawls are kept.
+	 *
+	 * @param directory the directory to store entries in
+	 * @throws IOException if unable to create the directory
+	 */
+	public HttpCache(Path directory) throws IOException
+	{
+		this.directory = directory;
+		this.lookups = new LongAdder();
+		this.found = new LongAdder();
+		this.notModified = new LongAdder();
+		this.stored = new LongAdder();
+
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Returns the file an entry is stored in, named after a SHA-256 hash of its
+	 * url and spread across subdirectories by the first byte of the hash.
+	 *
+	 * @param url the normalized url
+	 * @return the entry file
+	 */
+	private Path path(URL url)
+	{
+		try
+		{
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.toString().getBytes(StandardCharsets.UTF_8));
+			String name = HexFormat.of().formatHex(hash);
+			return directory.resolve(name.substring(0, 2)).resolve(name.substring(2) + ".page");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Looks up the entry for a url.
+	 *
+	 * @param url the normalized url
+	 * @return the entry, or {@code null} if the url is not cached
+	 */
+	public Entry get(URL url)
+	{
+		lookups.increment();
+		Path path = path(url);
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path))))
+		{
+			Entry entry = readHeader(in, path, url);
+			found.increment();
+			return entry;
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		catch (IOException e)
+		{
+			log.debug("Ignoring unreadable cache entry {}.", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the header of an entry: the url and the validating headers.
+	 *
+	 * @param in the input to read from
+	 * @param path the entry file
+	 * @param url the url the entry should be for
+	 * @return the entry
+	 * @throws IOException if unable to read a valid entry for the url
+	 */
+	private static Entry readHeader(DataInputStream in, Path path, URL url) throws IOException
+	{
+		if (in.readInt() != MAGIC || in.readInt() != VERSION || !CrawlCheckpoint.readString(in).equals(url.toString()))
+		{
+			throw new IOException("Not a cache entry for " + url + ": " + path);
+		}
+
+		String etag = CrawlCheckpoint.readString(in);
+		String lastModified = CrawlCheckpoint.readString(in);
+		return new Entry(url, path, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+	}
+
+	/**
+	 * Loads the links and words stored for a page that has not changed.
+	 *
+	 * @param entry the entry of the page
+	 * @param links the links to add the links of the page to
+	 * @param local the index to add the words of the page to
+	 * @return {@code true} if the entry was loaded
+	 */
+	public boolean load(Entry entry, Collection<URL> links, InvertedIndex local)
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry.path))))
+		{
+			readHeader(in, entry.path, entry.url);
+			CrawlCheckpoint.readPage(in, links, local);
+			notModified.increment();
+			return true;
+		}
+		catch (IOException e)
+		{
+			log.debug("Ignoring unreadable cache entry {}.", entry.path, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stores a page that was just fetched, replacing any earlier entry. Pages
+	 * without an "ETag" or "Last-Modified" header are not stored.
+	 *
+	 * @param url the normalized url
+	 * @param headers the response headers of the page
+	 * @param links the links of the page
+	 * @param local the local index of the page
+	 */
+	public void put(URL url, Map<String, List<String>> headers, Collection<URL> links, InvertedIndex local)
+	{
+		String etag = ResponseBody.getHeader(headers, "ETag");
+		String lastModified = ResponseBody.getHeader(headers, "Last-Modified");
+		Path path = path(url);
+
+		try
+		{
+			if (etag == null && lastModified == null)
+			{
+				Files.deleteIfExists(path);
+				return;
+			}
+
+			Files.createDirectories(path.getParent());
+			Path temp = Files.createTempFile(path.getParent(), null, ".tmp");
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				CrawlCheckpoint.writeString(out, url.toString());
+				CrawlCheckpoint.writeString(out, etag == null ? "" : etag);
+				CrawlCheckpoint.writeString(out, lastModified == null ? "" : lastModified);
+				CrawlCheckpoint.writePage(out, url, links, local);
+			}
+			catch (IOException e)
+			{
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			stored.increment();
+		}
+		catch (IOException e)
+		{
+			log.debug("Unable to cache {}.", url, e);
+		}
+	}
+
+	/**
+	 * Returns a summary of how often the cache was used, suitable for writing
+	 * as JSON.
+	 *
+	 * @return the cache statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		long lookups = this.lookups.sum();
+		long notModified = this.notModified.sum();
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("directory", directory.toString());
+		stats.put("lookups", lookups);
+		stats.put("found", found.sum());
+		stats.put("notModified", notModified);
+		stats.put("stored", stored.sum());
+		stats.put("hitRate", lookups == 0 ? 0 : Math.round(notModified * 1000.0 / lookups) / 1000.0);
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return directory.toString();
+	}
+
+	/**
+	 * The stored validating headers of a cached page.
+	 */
+	public static class Entry
+	{
+		/** The url of the page. */
+		private final URL url;
+
+		/** The file the entry is stored in. */
+		private final Path path;
+
+		/** The "ETag" header, or {@code null} if there was none. */
+		private final String etag;
+
+		/** The "Last-Modified" header, or {@code null} if there was none. */
+		private final String lastModified;
+
+		/**
+		 * Initializes an entry.
+		 *
+		 * @param url the url of the page
+		 * @param path the file the entry is stored in
+		 * @param etag the "ETag" header, or {@code null}
+		 * @param lastModified the "Last-Modified" header, or {@code null}
+		 */
+		private Entry(URL url, Path path, String etag, String lastModified)
+		{
+			this.url = url;
+			this.path = path;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * Returns the request headers that ask the server to only send the page
+		 * if it has changed since it was stored.
+		 *
+		 * @return the conditional request headers
+		 */
+		public Map<String, String> conditions()
+		{
+			Map<String, String> conditions = new LinkedHashMap<>();
+
+			if (etag != null)
+			{
+				conditions.put("If-None-Match", etag);
+			}
+
+			if (lastModified != null)
+			{
+				conditions.put("If-Modified-Since", lastModified);
+			}
+
+			return conditions;
+		}
+	}
+}
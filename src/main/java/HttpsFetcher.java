@@ -1,17 +1,31 @@
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import javax.net.SocketFactory;
@@ -20,129 +34,514 @@ import javax.net.ssl.SSLSocketFactory;
 /**
  * An alternative to using {@link Socket} connections instead of a
  * {@link URLConnection} to fetch the headers and content from a URL on the web.
+ *
+ * Socket connections are kept alive and reused for later requests to the same
+ * host, using a shared {@link ConnectionPool}. Response bodies are framed by
+ * their "Content-Length" header or chunked transfer encoding, so the end of a
+ * response can be found without the server closing the connection.
+ *
+ * Requests ask for gzip or deflate compressed content, which is decoded as it
+ * arrives by {@link DecodedBody}. The bytes received and decoded are totalled
+ * so the savings from compression can be reported by {@link #byteStats()}.
+ *
+ * Also supports fetching asynchronously with a shared {@link HttpClient}, which
+ * keeps HTTP/1.1 connections alive between requests and does not tie up a
+ * thread while waiting for a response. Both approaches return the headers and
+ * content in the same format, and both use the timeouts set by
+ * {@link #setTimeouts(Duration, Duration)}.
  * 
  * @author CS 212 Software Development
  * @author University of San Francisco
  * @version Spring 2021
  */
 public class HttpsFetcher {
+	/** The default time allowed to connect to a web server. */
+	public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+	/** The default time allowed to wait for a response from a web server. */
+	public static final Duration READ_TIMEOUT = Duration.ofSeconds(30);
+
+	/** The time allowed to connect to a web server. */
+	private static volatile Duration connectTimeout = CONNECT_TIMEOUT;
+
+	/** The time allowed to wait for a response from a web server. */
+	private static volatile Duration readTimeout = READ_TIMEOUT;
+
+	/** The most bytes read from a response that is not wanted, so its connection can be reused. */
+	private static final long DISCARD_BYTES = 64 * 1024;
+
+	/** The pool of connections reused by synchronous fetches. */
+	private static volatile ConnectionPool pool = new ConnectionPool();
+
+	/** The client used for asynchronous fetches, created when first needed. */
+	private static volatile HttpClient client = null;
+
+	/** The number of response bodies read. */
+	private static final LongAdder responses = new LongAdder();
+
+	/** The number of response bodies that were compressed. */
+	private static final LongAdder compressedResponses = new LongAdder();
+
+	/** The number of body bytes received. */
+	private static final LongAdder bodyBytes = new LongAdder();
+
+	/** The number of content bytes after decoding. */
+	private static final LongAdder contentBytes = new LongAdder();
+
+	/** The number of body bytes received for compressed responses. */
+	private static final LongAdder compressedBytes = new LongAdder();
+
+	/** The number of content bytes decoded from compressed responses. */
+	private static final LongAdder decompressedBytes = new LongAdder();
+
+	/**
+	 * Sets the time allowed to connect to and wait for responses from web
+	 * servers, for both synchronous and asynchronous fetches.
+	 *
+	 * @param connect the time allowed to connect
+	 * @param read the time allowed to wait for a response
+	 */
+	public static synchronized void setTimeouts(Duration connect, Duration read) {
+		connectTimeout = connect;
+		readTimeout = read;
+		client = null;
+	}
+
+	/**
+	 * Replaces the pool of connections reused by synchronous fetches. Idle
+	 * connections in the previous pool are closed.
+	 *
+	 * @param connections the new connection pool
+	 */
+	public static void setPool(ConnectionPool connections) {
+		ConnectionPool previous = pool;
+		pool = connections;
+		previous.closeIdle();
+	}
+
+	/**
+	 * Returns the pool of connections reused by synchronous fetches.
+	 *
+	 * @return the connection pool
+	 */
+	public static ConnectionPool pool() {
+		return pool;
+	}
+
+	/**
+	 * Returns the client used for asynchronous fetches, creating it if needed.
+	 * Redirects are not followed, since {@link HtmlFetcher} handles them.
+	 *
+	 * @return the shared http client
+	 */
+	private static synchronized HttpClient client() {
+		if (client == null) {
+			client = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_1_1)
+					.followRedirects(HttpClient.Redirect.NEVER)
+					.connectTimeout(connectTimeout)
+					.build();
+		}
+
+		return client;
+	}
+
+	/**
+	 * Fetches the headers and content for the specified URL asynchronously. The
+	 * returned map has the same format as {@link #fetchURL(URL)}: the status line
+	 * is under the {@code null} key, each header is under its name, and the
+	 * lines of content are under the "Content" key.
+	 *
+	 * @param url the url to fetch
+	 * @return a future that completes with the headers and content, or
+	 *         completes exceptionally if unable to fetch them
+	 */
+	public static CompletableFuture<Map<String, List<String>>> fetchURLAsync(URL url) {
+		HttpRequest request;
+
+		try {
+			request = HttpRequest.newBuilder(url.toURI())
+					.timeout(readTimeout)
+					.header("Accept-Encoding", DecodedBody.ACCEPT_ENCODING)
+					.GET()
+					.build();
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+
+		return client().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(HttpsFetcher::getResponseFields);
+	}
+
+	/**
+	 * Converts a response from the http client into the same map of headers and
+	 * content returned by {@link #fetchURL(URL)}, decoding compressed content.
+	 *
+	 * @param response the response to convert
+	 * @return a map with the headers and content
+	 * @throws UncheckedIOException if unable to decode the content
+	 */
+	private static Map<String, List<String>> getResponseFields(HttpResponse<byte[]> response) {
+		Map<String, List<String>> results = new HashMap<>();
+		results.put(null, List.of("HTTP/1.1 " + response.statusCode()));
+
+		response.headers().map().forEach((name, values) -> {
+			results.computeIfAbsent(getHeaderName(name), key -> new ArrayList<>()).addAll(values);
+		});
+
+		try (DecodedBody decoded = new DecodedBody(new ByteArrayInputStream(response.body()), results, Long.MAX_VALUE)) {
+			byte[] content = decoded.readAllBytes();
+			record(response.body().length, decoded);
+			results.put("Content", new String(content, StandardCharsets.UTF_8).lines().collect(Collectors.toList()));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return results;
+	}
+
+	/**
+	 * Capitalizes each part of a header name, so that (for example)
+	 * "content-type" becomes "Content-Type".
+	 *
+	 * @param name the header name
+	 * @return the capitalized header name
+	 */
+	private static String getHeaderName(String name) {
+		char[] chars = name.toLowerCase().toCharArray();
+
+		for (int i = 0; i < chars.length; i++) {
+			if (i == 0 || chars[i - 1] == '-') {
+				chars[i] = Character.toUpperCase(chars[i]);
+			}
+		}
+
+		return new String(chars);
+	}
+
 	/**
 	 * Fetches the headers and content for the specified URL. The content is
 	 * placed as a list of all the lines fetched under the "Content" key.
 	 *
+	 * The request is sent over a pooled keep-alive connection when one is idle.
+	 * If a reused connection turns out to have been closed by the server, the
+	 * request is retried once over a new connection.
+	 *
 	 * @param url the url to fetch
 	 * @return a map with the headers and content
 	 * @throws IOException if unable to fetch headers and content
 	 */
 	public static Map<String, List<String>> fetchURL(URL url) throws IOException {
-		try (
-				Socket socket = openConnection(url);
-				PrintWriter request = new PrintWriter(socket.getOutputStream());
-				InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-				BufferedReader response = new BufferedReader(input);
-		) {
-			printGetRequest(request, url);
-
-			Map<String, List<String>> headers = getHeaderFields(response);
-			List<String> content = getContent(response);
-			headers.put("Content", content);
+		return exchange(url, Map.of(), (connection, headers) -> {
+			ResponseBody body = new ResponseBody(connection.input(), headers, Long.MAX_VALUE);
+			byte[] content;
 
+			try (DecodedBody decoded = new DecodedBody(body, headers, Long.MAX_VALUE)) {
+				content = decoded.readAllBytes();
+				finish(body);
+				record(body.bytesRead(), decoded);
+			}
+
+			connection.reusable(body.isComplete() && isKeepAlive(headers));
+
+			headers.put("Content", new String(content, StandardCharsets.UTF_8).lines().collect(Collectors.toList()));
 			return headers;
-		}
+		});
 	}
 
 	/**
-	 * See {@link #fetchURL(URL)} for details.
+	 * Fetches the headers for the specified URL and, if they are accepted,
+	 * writes the content to the writer as it arrives instead of collecting it
+	 * into lines. At most the maximum number of bytes of decoded content are
+	 * read; the rest of a larger response is ignored.
 	 *
 	 * @param url the url to fetch
-	 * @return a map with the headers and content
-	 * @throws MalformedURLException if unable to convert String to URL
+	 * @param accept decides whether to read the content, given the headers
+	 * @param maxBytes the maximum number of bytes of content to read
+	 * @param content the writer for the content
+	 * @return a map with the headers, but not the content
 	 * @throws IOException if unable to fetch headers and content
 	 *
 	 * @see #fetchURL(URL)
 	 */
-	public static Map<String, List<String>> fetchURL(String url) throws MalformedURLException, IOException {
-		return fetchURL(new URL(url));
+	public static Map<String, List<String>> fetchURL(URL url, Predicate<Map<String, List<String>>> accept,
+			long maxBytes, Writer content) throws IOException {
+		return fetchURL(url, Map.of(), accept, maxBytes, content);
 	}
 
 	/**
-	 * Uses a {@link Socket} to open a connection to the web server associated
-	 * with the provided URL. Supports HTTP and HTTPS connections.
+	 * Fetches the url like {@link #fetchURL(URL, Predicate, long, Writer)}, but
+	 * also sends the extra request headers, such as the conditions of a
+	 * conditional request.
 	 *
-	 * @param url the url to connect
-	 * @return a socket connection for that url
-	 * @throws UnknownHostException if the host is not known
-	 * @throws IOException if an I/O error occurs when creating the socket
+	 * @param url the url to fetch
+	 * @param request the extra request headers to send
+	 * @param accept decides whether to read the content, given the headers
+	 * @param maxBytes the maximum number of bytes of content to read
+	 * @param content the writer for the content
+	 * @return a map with the headers, but not the content
+	 * @throws IOException if unable to fetch headers and content
+	 */
+	public static Map<String, List<String>> fetchURL(URL url, Map<String, String> request,
+			Predicate<Map<String, List<String>>> accept, long maxBytes, Writer content) throws IOException {
+		return exchange(url, request, (connection, headers) -> {
+			boolean accepted = accept.test(headers);
+			ResponseBody body = new ResponseBody(connection.input(), headers, accepted ? Long.MAX_VALUE : DISCARD_BYTES);
+
+			if (accepted) {
+				try (DecodedBody decoded = new DecodedBody(body, headers, maxBytes)) {
+					new InputStreamReader(decoded, StandardCharsets.UTF_8).transferTo(content);
+
+					if (!decoded.isTruncated()) {
+						finish(body);
+					}
+
+					record(body.bytesRead(), decoded);
+				}
+			}
+			else {
+				body.transferTo(OutputStream.nullOutputStream());
+			}
+
+			connection.reusable(body.isComplete() && isKeepAlive(headers));
+			return headers;
+		});
+	}
+
+	/**
+	 * Reads whatever is left of a body once all of its content was decoded,
+	 * such as the end of the last chunk, so its connection can be reused. At
+	 * most {@link #DISCARD_BYTES} are read.
 	 *
-	 * @see URL#openConnection()
+	 * @param body the body to finish reading
+	 * @throws IOException if unable to read from socket
 	 */
-	public static Socket openConnection(URL url) throws UnknownHostException, IOException {
-		String protocol = url.getProtocol();
-		String host = url.getHost();
+	private static void finish(ResponseBody body) throws IOException {
+		body.skip(DISCARD_BYTES);
+	}
 
-		boolean https = protocol != null && protocol.equalsIgnoreCase("https");
-		int defaultPort = https ? 443 : 80;
-		int port = url.getPort() < 0 ? defaultPort : url.getPort();
+	/**
+	 * Adds a response body to the byte totals.
+	 *
+	 * @param received the number of body bytes received
+	 * @param decoded the decoded content of the body
+	 */
+	private static void record(long received, DecodedBody decoded) {
+		responses.increment();
+		bodyBytes.add(received);
+		contentBytes.add(decoded.bytesRead());
 
-		SocketFactory factory = https ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
-		return factory.createSocket(host, port);
+		if (decoded.isEncoded()) {
+			compressedResponses.increment();
+			compressedBytes.add(received);
+			decompressedBytes.add(decoded.bytesRead());
+		}
+	}
+
+	/**
+	 * Returns the number of body bytes received and content bytes decoded so
+	 * far, overall and for compressed responses, suitable for writing as JSON.
+	 *
+	 * @return the byte totals
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public static Map<String, Object> byteStats() {
+		long compressed = compressedBytes.sum();
+		long decompressed = decompressedBytes.sum();
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("responses", responses.sum());
+		stats.put("compressedResponses", compressedResponses.sum());
+		stats.put("bodyBytes", bodyBytes.sum());
+		stats.put("contentBytes", contentBytes.sum());
+		stats.put("compressedBytes", compressed);
+		stats.put("decompressedBytes", decompressed);
+		stats.put("compressionRatio", compressed == 0 ? 0 : Math.round(decompressed * 1000.0 / compressed) / 1000.0);
+		return stats;
 	}
 
 	/**
-	 * Writes a simple HTTP GET request to the provided socket writer.
+	 * Sends a GET request for the url over a pooled connection, reads the
+	 * response headers, and then reads the rest of the response. If a reused
+	 * connection turns out to have been closed by the server before the headers
+	 * arrived, the request is retried over another connection.
 	 *
-	 * @param writer a writer created from a socket connection
-	 * @param url the url to fetch via the socket connection
+	 * @param <T> the type of result
+	 * @param url the url to fetch
+	 * @param request the extra request headers to send
+	 * @param exchange reads the rest of the response
+	 * @return the result of reading the response
+	 * @throws IOException if unable to fetch the response
+	 */
+	private static <T> T exchange(URL url, Map<String, String> request, Exchange<T> exchange) throws IOException {
+		ConnectionPool connections = pool;
+
+		while (true) {
+			ConnectionPool.Connection connection = connections.acquire(url);
+			Map<String, List<String>> headers = null;
+
+			try {
+				connection.socket().setSoTimeout((int) readTimeout.toMillis());
+				writeGetRequest(connection.output(), url, request);
+				headers = readHeaderFields(connection.input());
+				return exchange.read(connection, headers);
+			}
+			catch (IOException e) {
+				connection.reusable(false);
+
+				if (!connection.reused() || headers != null) {
+					throw e;
+				}
+			}
+			finally {
+				connections.release(connection);
+			}
+		}
+	}
+
+	/**
+	 * Reads the rest of a response once its headers have been read.
+	 *
+	 * @param <T> the type of result
+	 */
+	@FunctionalInterface
+	private interface Exchange<T> {
+		/**
+		 * Reads the rest of the response, and marks the connection as reusable
+		 * if the whole response was read and the server allows it.
+		 *
+		 * @param connection the connection the response is read from
+		 * @param headers the response headers
+		 * @return the result of reading the response
+		 * @throws IOException if unable to read the response
+		 */
+		public T read(ConnectionPool.Connection connection, Map<String, List<String>> headers) throws IOException;
+	}
+
+	/**
+	 * Checks whether the server allows the connection to be kept alive after
+	 * the response.
+	 *
+	 * @param headers the response headers
+	 * @return {@code true} if the connection may be kept alive
+	 */
+	private static boolean isKeepAlive(Map<String, List<String>> headers) {
+		String status = headers.get(null).get(0);
+		String connection = ResponseBody.getHeader(headers, "Connection");
+
+		return status.startsWith("HTTP/1.1")
+				? connection == null || !connection.equalsIgnoreCase("close")
+				: connection != null && connection.equalsIgnoreCase("keep-alive");
+	}
+
+	/**
+	 * Writes an HTTP GET request that asks for the connection to be kept alive
+	 * and for compressed content, followed by any extra headers (such as the
+	 * conditions of a conditional request).
+	 *
+	 * @param output the output to a socket connection
+	 * @param url the url to fetch
+	 * @param headers the extra request headers to send
 	 * @throws IOException if unable to write request to socket
 	 */
-	public static void printGetRequest(PrintWriter writer, URL url) throws IOException {
-		String host = url.getHost();
+	private static void writeGetRequest(OutputStream output, URL url, Map<String, String> headers) throws IOException {
+		String host = url.getPort() < 0 ? url.getHost() : url.getHost() + ":" + url.getPort();
 		String resource = url.getFile().isEmpty() ? "/" : url.getFile();
 
-		writer.printf("GET %s HTTP/1.1\r\n", resource);
-		writer.printf("Host: %s\r\n", host);
-		writer.printf("Connection: close\r\n");
-		writer.printf("\r\n");
-		writer.flush();
+		StringBuilder request = new StringBuilder();
+		request.append(String.format("GET %s HTTP/1.1\r\nHost: %s\r\nConnection: keep-alive\r\n", resource, host));
+		request.append("Accept-Encoding: ").append(DecodedBody.ACCEPT_ENCODING).append("\r\n");
+
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+
+		request.append("\r\n");
+		output.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+		output.flush();
 	}
 
 	/**
-	 * Gets the header fields from a reader associated with a socket connection.
-	 * Requires that the socket reader has not yet been used, otherwise this
-	 * method will return unpredictable results.
-	 *
-	 * @param response a reader created from a socket connection
-	 * @return a map of header fields to a list of header values
-	 * @throws IOException if unable to read from socket
+	 * Reads the status line and header fields of a response, leaving the input
+	 * at the start of the response body.
 	 *
-	 * @see URLConnection#getHeaderFields()
+	 * @param input the input from a socket connection
+	 * @return a map of header fields to a list of header values, with the status
+	 *         line under the {@code null} key
+	 * @throws IOException if unable to read from socket or the connection was
+	 *         closed before a response
 	 */
-	public static Map<String, List<String>> getHeaderFields(BufferedReader response) throws IOException {
+	private static Map<String, List<String>> readHeaderFields(InputStream input) throws IOException {
 		Map<String, List<String>> results = new HashMap<>();
 
-		String line = response.readLine();
+		String line = ResponseBody.readLine(input);
+
+		if (line == null) {
+			throw new EOFException("Connection closed before a response");
+		}
+
 		results.put(null, List.of(line));
 
-		while ((line = response.readLine()) != null && !line.isBlank()) {
-			String[] split = line.split(":\\s+", 2);
-			assert split.length == 2;
+		while ((line = ResponseBody.readLine(input)) != null && !line.isBlank()) {
+			int colon = line.indexOf(':');
 
-			results.putIfAbsent(split[0], new ArrayList<>());
-			results.get(split[0]).add(split[1]);
+			if (colon > 0) {
+				String name = line.substring(0, colon).trim();
+				results.computeIfAbsent(name, key -> new ArrayList<>()).add(line.substring(colon + 1).trim());
+			}
 		}
 
 		return results;
 	}
 
 	/**
-	 * Gets the content from a socket. Whether this output includes headers
-	 * depends how the socket connection has already been used.
+	 * See {@link #fetchURL(URL)} for details.
 	 *
-	 * @param response the reader created from a socket connection
-	 * @return a list of lines read from the socket reader
-	 * @throws IOException if unable to read from socket
+	 * @param url the url to fetch
+	 * @return a map with the headers and content
+	 * @throws MalformedURLException if unable to convert String to URL
+	 * @throws IOException if unable to fetch headers and content
+	 *
+	 * @see #fetchURL(URL)
+	 */
+	public static Map<String, List<String>> fetchURL(String url) throws MalformedURLException, IOException {
+		return fetchURL(LinkParser.parse(url));
+	}
+
+	/**
+	 * Uses a {@link Socket} to open a connection to the web server associated
+	 * with the provided URL. Supports HTTP and HTTPS connections.
+	 *
+	 * @param url the url to connect
+	 * @return a socket connection for that url
+	 * @throws UnknownHostException if the host is not known
+	 * @throws IOException if an I/O error occurs when creating the socket
+	 *
+	 * @see URL#openConnection()
 	 */
-	public static List<String> getContent(BufferedReader response) throws IOException {
-		return response.lines().collect(Collectors.toList());
+	public static Socket openConnection(URL url) throws UnknownHostException, IOException {
+		String protocol = url.getProtocol();
+		String host = url.getHost();
+
+		boolean https = protocol != null && protocol.equalsIgnoreCase("https");
+		int defaultPort = https ? 443 : 80;
+		int port = url.getPort() < 0 ? defaultPort : url.getPort();
+
+		SocketFactory factory = https ? SSLSocketFactory.getDefault() : SocketFactory.getDefault();
+		Socket socket = factory.createSocket();
+
+		try {
+			socket.connect(new InetSocketAddress(host, port), (int) connectTimeout.toMillis());
+			socket.setSoTimeout((int) readTimeout.toMillis());
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		return socket;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,391 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Applies updates to an index that is being searched, without ever making
+ * searches wait. Updates are small local indexes (deltas) built by whoever
+ * found the new content, such as the crawler or a file watcher, along with
+ * any locations they replace. A single background thread merges the waiting
+ * deltas into the index in batches and publishes each batch at once.
+ *
+ * Deltas take effect in the order they were submitted. A batch is only split
+ * where one delta removes a location that an earlier delta in the same batch
+ * added, such as a file replaced twice in quick succession, so that the
+ * later delta wins.
+ *
+ * Searches read published snapshots of the index, so they never wait on a
+ * merge. Batches are bounded, so the write lock is never held for long, and
+ * the number of deltas waiting is bounded too, so ingestion slows down rather
+ * than running out of memory if it gets ahead of merging.
+ *
+ * The time from when each delta is submitted until it can be searched is
+ * recorded, along with the size and merge time of each batch.
+ *
+ * @see ThreadSafeInvertedIndex#update(Collection, Collection)
+ *
+ * @author heidishimek
+ *
+ */
+public class IndexUpdater implements Closeable
+{
+	/** The most deltas merged in one batch. */
+	public static final int BATCH = 64;
+
+	/** The most deltas waiting to be merged before submitting waits. */
+	public static final int CAPACITY = 1024;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** Tells the merging thread to stop. */
+	private static final Delta STOP = new Delta(List.of(), List.of());
+
+	/** The index updated. */
+	private final ThreadSafeInvertedIndex index;
+
+	/** The deltas waiting to be merged. */
+	private final BlockingQueue<Delta> pending;
+
+	/** The thread that merges the deltas. */
+	private final Thread merger;
+
+	/** The number of deltas submitted. */
+	private long submitted;
+
+	/** The number of deltas merged and published. */
+	private long applied;
+
+	/** Whether the updater was closed. */
+	private boolean closed;
+
+	/** The number of locations removed or replaced. */
+	private final LongAdder removed;
+
+	/** The number of local indexes added. */
+	private final LongAdder added;
+
+	/** How long each delta took to become searchable, in nanoseconds. */
+	private final Histogram searchable;
+
+	/** How long each batch took to merge and publish, in nanoseconds. */
+	private final Histogram mergeTime;
+
+	/** The number of deltas in each batch. */
+	private final Histogram batchSize;
+
+	/**
+	 * Initializes an updater and starts its merging thread.
+	 *
+	 * @param index the index to update
+	 */
+	public IndexUpdater(ThreadSafeInvertedIndex index)
+	{
+		this.index = index;
+		this.pending = new ArrayBlockingQueue<>(CAPACITY);
+		this.removed = new LongAdder();
+		this.added = new LongAdder();
+		this.searchable = new Histogram();
+		this.mergeTime = new Histogram();
+		this.batchSize = new Histogram();
+		this.submitted = 0;
+		this.applied = 0;
+		this.closed = false;
+		this.merger = Thread.ofPlatform().name("index-updater").daemon().start(this::run);
+	}
+
+	/**
+	 * Adds local indexes of new locations.
+	 *
+	 * @param locals the local indexes to add
+	 */
+	public void add(Collection<? extends InvertedIndex> locals)
+	{
+		submit(new Delta(List.of(), List.copyOf(locals)));
+	}
+
+	/**
+	 * Replaces everything indexed for a location with a new local index of it.
+	 *
+	 * @param location the location
+	 * @param local the new local index of the location
+	 */
+	public void replace(String location, InvertedIndex local)
+	{
+		submit(new Delta(List.of(location), List.of(local)));
+	}
+
+	/**
+	 * Removes everything indexed for a location.
+	 *
+	 * @param location the location
+	 */
+	public void remove(String location)
+	{
+		submit(new Delta(List.of(location), List.of()));
+	}
+
+	/**
+	 * Queues a delta to be merged, waiting if too many are waiting already.
+	 *
+	 * @param delta the delta
+	 * @throws IllegalStateException if the updater was closed
+	 */
+	private void submit(Delta delta)
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				throw new IllegalStateException("Index updater closed.");
+			}
+
+			submitted++;
+		}
+
+		try
+		{
+			pending.put(delta);
+		}
+		catch (InterruptedException e)
+		{
+			// still merged later, so flush does not wait forever
+			pending.add(delta);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits until every delta submitted so far can be searched.
+	 */
+	public void flush()
+	{
+		synchronized (this)
+		{
+			long target = submitted;
+
+			try
+			{
+				while (applied < target)
+				{
+					wait();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Merges deltas as they arrive, up to {@link #BATCH} at a time, until
+	 * stopped.
+	 */
+	private void run()
+	{
+		List<Delta> batch = new ArrayList<>(BATCH);
+
+		while (true)
+		{
+			try
+			{
+				batch.add(pending.take());
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+
+			pending.drainTo(batch, BATCH - 1);
+			boolean stop = batch.remove(STOP);
+
+			if (!batch.isEmpty())
+			{
+				merge(batch);
+			}
+
+			batch.clear();
+
+			if (stop)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Merges a batch of deltas in order, publishing them together unless the
+	 * batch has to be split.
+	 *
+	 * @param batch the deltas
+	 */
+	private void merge(List<Delta> batch)
+	{
+		long start = System.nanoTime();
+		Set<String> locations = new LinkedHashSet<>();
+		Set<String> adding = new HashSet<>();
+		List<InvertedIndex> locals = new ArrayList<>();
+
+		for (Delta delta : batch)
+		{
+			// removing a location added earlier in the batch must come after it
+			if (!Collections.disjoint(adding, delta.removed))
+			{
+				update(locations, locals);
+				locations.clear();
+				adding.clear();
+				locals.clear();
+			}
+
+			locations.addAll(delta.removed);
+
+			for (InvertedIndex local : delta.locals)
+			{
+				adding.addAll(local.getLocations());
+				locals.add(local);
+			}
+		}
+
+		update(locations, locals);
+
+		long done = System.nanoTime();
+		mergeTime.record(done - start);
+		batchSize.record(batch.size());
+
+		for (Delta delta : batch)
+		{
+			searchable.record(done - delta.submitted);
+		}
+
+		synchronized (this)
+		{
+			applied += batch.size();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Removes the locations and then adds the local indexes, as one update.
+	 *
+	 * @param locations the locations to remove
+	 * @param locals the local indexes to add
+	 */
+	private void update(Set<String> locations, List<InvertedIndex> locals)
+	{
+		if (locations.isEmpty() && locals.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			index.update(locations, locals);
+		}
+		catch (RuntimeException e)
+		{
+			log.error("Unable to merge {} index updates.", locations.size() + locals.size(), e);
+		}
+
+		removed.add(locations.size());
+		added.add(locals.size());
+	}
+
+	/**
+	 * Merges every delta submitted so far and stops the merging thread.
+	 */
+	@Override
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+		}
+
+		flush();
+		pending.add(STOP);
+
+		try
+		{
+			merger.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns a summary of the updates, suitable for writing as JSON. Times are
+	 * reported in milliseconds.
+	 *
+	 * @return the update statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public synchronized Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("submitted", submitted);
+		stats.put("applied", applied);
+		stats.put("waiting", pending.size());
+		stats.put("added", added.sum());
+		stats.put("removed", removed.sum());
+		stats.put("batchSize", batchSize.toMap(1));
+		stats.put("mergeMillis", mergeTime.toMap(1_000_000));
+		stats.put("searchableMillis", searchable.toMap(1_000_000));
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * Local indexes to add, and the locations they replace.
+	 */
+	private static class Delta
+	{
+		/** The locations to remove before adding. */
+		private final List<String> removed;
+
+		/** The local indexes to add. */
+		private final List<? extends InvertedIndex> locals;
+
+		/** When the delta was created, in nanoseconds. */
+		private final long submitted;
+
+		/**
+		 * Initializes a delta.
+		 *
+		 * @param removed the locations to remove before adding
+		 * @param locals the local indexes to add
+		 */
+		private Delta(List<String> removed, List<? extends InvertedIndex> locals)
+		{
+			this.removed = removed;
+			this.locals = locals;
+			this.submitted = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,537 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps an index up to date with a directory of text files as they change,
+ * without parsing the whole directory again. Every directory under the root is
+ * watched, and only the text files that were created, modified or deleted are
+ * parsed again or removed from the index, through an {@link IndexUpdater}.
+ *
+ * Changes usually arrive in bursts, such as a file being written in several
+ * pieces or many files being copied at once. Events are collected until none
+ * have arrived for the debounce delay (or for at most {@link #MAX_DELAY_FACTOR}
+ * times that delay during a long burst), and every file changed in that time
+ * is then updated once, in parallel, as a single batch. A file whose last
+ * modified time has not changed since it was indexed is not parsed again.
+ *
+ * If the operating system drops events because too many arrived at once, the
+ * whole tree is scanned for changes instead.
+ *
+ * @see IndexFactory#textFile(Path)
+ *
+ * @author heidishimek
+ *
+ */
+public class IndexWatcher implements Closeable
+{
+	/** The default debounce delay, in milliseconds. */
+	public static final int DEBOUNCE = 200;
+
+	/** The longest a burst of events is collected for, in debounce delays. */
+	public static final int MAX_DELAY_FACTOR = 10;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The directory or text file watched. */
+	private final Path root;
+
+	/** Whether the root is a directory rather than a single file. */
+	private final boolean directory;
+
+	/** Applies the changes to the index. */
+	private final IndexUpdater updater;
+
+	/** Parses the changed files. */
+	private final WorkQueue.TaskGroup tasks;
+
+	/** How long to wait for more events before updating, in milliseconds. */
+	private final long debounce;
+
+	/** Reports the events of every watched directory. */
+	private final WatchService watcher;
+
+	/** The directory each watch key was registered for. */
+	private final Map<WatchKey, Path> keys;
+
+	/** The last modified time of each text file in the index. */
+	private final Map<Path, FileTime> indexed;
+
+	/** The thread that waits for events. */
+	private final Thread thread;
+
+	/** The number of events received. */
+	private long events;
+
+	/** The number of batches of changes applied. */
+	private long batches;
+
+	/** The number of files parsed again. */
+	private long parsed;
+
+	/** The number of files skipped because they had not changed. */
+	private long unchanged;
+
+	/** The number of files removed from the index. */
+	private long removed;
+
+	/** The number of times events were dropped and the tree scanned instead. */
+	private long overflows;
+
+	/** How long each batch took from its first event until searchable, in nanoseconds. */
+	private final Histogram batchTime;
+
+	/** The number of changed paths in each batch. */
+	private final Histogram batchSize;
+
+	/**
+	 * Initializes a watcher for a directory or text file that was already
+	 * indexed. Nothing is watched until {@link #start()} is called.
+	 *
+	 * @param root the directory or text file to watch
+	 * @param updater applies the changes to the index
+	 * @param workQueue parses the changed files
+	 * @param debounce how long to wait for more events before updating
+	 * @throws IOException if unable to watch the root
+	 */
+	public IndexWatcher(Path root, IndexUpdater updater, WorkQueue workQueue, Duration debounce) throws IOException
+	{
+		this.root = root;
+		this.directory = Files.isDirectory(root);
+		this.updater = updater;
+		this.tasks = workQueue.group();
+		this.debounce = Math.max(debounce.toMillis(), 1);
+		this.watcher = FileSystems.getDefault().newWatchService();
+		this.keys = new HashMap<>();
+		this.indexed = new HashMap<>();
+		this.batchTime = new Histogram();
+		this.batchSize = new Histogram();
+		this.thread = Thread.ofPlatform().name("index-watcher").daemon().unstarted(this::run);
+
+		if (directory)
+		{
+			register(root, null);
+		}
+		else
+		{
+			// events are resolved against the parent as given, to match the location
+			Path parent = root.getParent() == null ? Path.of("") : root.getParent();
+			watch(root.toAbsolutePath().getParent(), parent);
+			remember(root);
+		}
+	}
+
+	/**
+	 * Starts watching for changes.
+	 */
+	public void start()
+	{
+		thread.start();
+		log.info("Watching {} for changes with {} directories and {} files.", root, keys.size(), indexed.size());
+	}
+
+	/**
+	 * Waits until the watcher stops, which only happens once it is closed.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void join() throws InterruptedException
+	{
+		thread.join();
+	}
+
+	/**
+	 * Stops watching for changes.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			watcher.close();
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to close the watch service for {}.", root, e);
+		}
+	}
+
+	/**
+	 * Watches a directory and every directory under it, and remembers the text
+	 * files in them. Text files are also collected if a set is given, so that
+	 * files in a directory created or moved into the tree are indexed.
+	 *
+	 * @param start the directory
+	 * @param found where to collect the text files, or {@code null}
+	 * @throws IOException if unable to watch a directory
+	 */
+	private void register(Path start, Set<Path> found) throws IOException
+	{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+		{
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+			{
+				watch(dir, dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+			{
+				if (IndexFactory.textFile(file))
+				{
+					if (found != null)
+					{
+						found.add(file);
+					}
+					else
+					{
+						indexed.put(file, attrs.lastModifiedTime());
+					}
+				}
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e)
+			{
+				// deleted while walking, which is reported as its own event
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Watches a single directory for created, modified and deleted entries.
+	 *
+	 * @param dir the directory
+	 * @param path the path its entries are resolved against
+	 * @throws IOException if unable to watch the directory
+	 */
+	private void watch(Path dir, Path path) throws IOException
+	{
+		WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		keys.put(key, path);
+	}
+
+	/**
+	 * Remembers the last modified time of an indexed text file.
+	 *
+	 * @param file the file
+	 */
+	private void remember(Path file)
+	{
+		try
+		{
+			indexed.put(file, Files.getLastModifiedTime(file));
+		}
+		catch (IOException e)
+		{
+			indexed.remove(file);
+		}
+	}
+
+	/**
+	 * Waits for bursts of events and applies each one as a batch, until the
+	 * watcher is closed.
+	 */
+	private void run()
+	{
+		try
+		{
+			while (true)
+			{
+				WatchKey key = watcher.take();
+				long first = System.nanoTime();
+				long deadline = first + debounce * MAX_DELAY_FACTOR * 1_000_000;
+				Set<Path> changed = new LinkedHashSet<>();
+				boolean overflow = false;
+
+				while (key != null)
+				{
+					overflow |= collect(key, changed);
+					long wait = Math.min(debounce * 1_000_000, deadline - System.nanoTime());
+					key = wait > 0 ? watcher.poll(wait, TimeUnit.NANOSECONDS) : null;
+				}
+
+				if (overflow)
+				{
+					scan(changed);
+				}
+
+				apply(changed);
+
+				synchronized (this)
+				{
+					batches++;
+					batchSize.record(changed.size());
+					batchTime.record(System.nanoTime() - first);
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			log.debug("Stopped watching {}.", root);
+		}
+	}
+
+	/**
+	 * Adds the paths changed by the events of a watch key.
+	 *
+	 * @param key the watch key
+	 * @param changed the changed paths
+	 * @return whether events were dropped
+	 */
+	private boolean collect(WatchKey key, Set<Path> changed)
+	{
+		Path dir = keys.get(key);
+		boolean overflow = false;
+
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			synchronized (this)
+			{
+				events++;
+			}
+
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+			{
+				overflow = true;
+				continue;
+			}
+
+			Path path = dir.resolve((Path) event.context());
+
+			if (!directory && !path.equals(root))
+			{
+				continue;
+			}
+
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+			{
+				try
+				{
+					register(path, changed);
+				}
+				catch (IOException e)
+				{
+					log.warn("Unable to watch {}.", path, e);
+				}
+			}
+			else
+			{
+				changed.add(path);
+			}
+		}
+
+		if (!key.reset())
+		{
+			keys.remove(key);
+		}
+
+		return overflow;
+	}
+
+	/**
+	 * Adds every text file in the tree, and every indexed file that is no
+	 * longer there, for when events were dropped. Files that have not changed
+	 * are skipped when the changes are applied.
+	 *
+	 * @param changed the changed paths
+	 */
+	private void scan(Set<Path> changed)
+	{
+		synchronized (this)
+		{
+			overflows++;
+		}
+
+		changed.addAll(indexed.keySet());
+
+		try
+		{
+			if (directory)
+			{
+				register(root, changed);
+			}
+		}
+		catch (IOException e)
+		{
+			log.warn("Unable to scan {} for changes.", root, e);
+		}
+	}
+
+	/**
+	 * Parses the changed text files again and removes the deleted ones, then
+	 * waits until the changes can be searched. A deleted path also removes
+	 * every indexed file under it, in case it was a directory.
+	 *
+	 * @param changed the changed paths
+	 */
+	private void apply(Set<Path> changed)
+	{
+		List<Path> gone = new ArrayList<>();
+		int parsing = 0;
+		int skipped = 0;
+
+		for (Path path : changed)
+		{
+			if (IndexFactory.textFile(path))
+			{
+				FileTime modified = indexed.get(path);
+				remember(path);
+
+				if (modified != null && modified.equals(indexed.get(path)))
+				{
+					skipped++;
+					continue;
+				}
+
+				parsing++;
+				tasks.execute(() -> parse(path));
+			}
+			else if (!Files.isDirectory(path))
+			{
+				Iterator<Path> iterator = indexed.keySet().iterator();
+
+				while (iterator.hasNext())
+				{
+					Path file = iterator.next();
+
+					if (file.startsWith(path))
+					{
+						iterator.remove();
+						gone.add(file);
+					}
+				}
+
+				unwatch(path);
+			}
+		}
+
+		for (Path file : gone)
+		{
+			updater.remove(file.toString());
+		}
+
+		tasks.finish();
+		updater.flush();
+
+		synchronized (this)
+		{
+			parsed += parsing;
+			unchanged += skipped;
+			removed += gone.size();
+		}
+
+		if (parsing > 0 || !gone.isEmpty())
+		{
+			log.info("Updated {} and removed {} files under {}.", parsing, gone.size(), root);
+		}
+	}
+
+	/**
+	 * Stops watching a removed directory and every directory under it, which
+	 * would otherwise still be watched if it was moved out of the tree.
+	 *
+	 * @param path the removed path
+	 */
+	private void unwatch(Path path)
+	{
+		if (!directory)
+		{
+			return;
+		}
+
+		Iterator<Map.Entry<WatchKey, Path>> iterator = keys.entrySet().iterator();
+
+		while (iterator.hasNext())
+		{
+			Map.Entry<WatchKey, Path> entry = iterator.next();
+
+			if (entry.getValue().startsWith(path))
+			{
+				entry.getKey().cancel();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Parses a text file into a local index and replaces the file in the index
+	 * with it.
+	 *
+	 * @param file the file
+	 */
+	private void parse(Path file)
+	{
+		InvertedIndex local = new InvertedIndex();
+
+		try
+		{
+			IndexFactory.parseText(file, local);
+			updater.replace(file.toString(), local);
+		}
+		catch (IOException e)
+		{
+			// removed or replaced while parsing, which is its own event
+			log.debug("Unable to parse {}.", file, e);
+		}
+	}
+
+	/**
+	 * Returns a summary of the changes applied, suitable for writing as JSON.
+	 * Batch times are from the first event until searchable, in milliseconds.
+	 *
+	 * @return the watch statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, Path)
+	 */
+	public synchronized Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("events", events);
+		stats.put("batches", batches);
+		stats.put("parsed", parsed);
+		stats.put("unchanged", unchanged);
+		stats.put("removed", removed);
+		stats.put("overflows", overflows);
+		stats.put("batchSize", batchSize.toMap(1));
+		stats.put("batchMillis", batchTime.toMap(1_000_000));
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return root.toString();
+	}
+}
@@ -2,6 +2,7 @@ import java.io.*;
 import java.nio.file.Path;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.function.BiConsumer;
 
 /**
  * Data structure class for the Inverted Index
@@ -125,6 +126,16 @@ public class InvertedIndex
 		return Collections.emptySet();
 	}
 	
+	/**
+	 * Returns an unmodifiable view of the locations with at least one word
+	 * 
+	 * @return		unmodifiable set
+	 */
+	public Set<String> getLocations()
+	{
+		return Collections.unmodifiableSet(count.keySet());
+	}
+	
 	/**
 	 * Helper method to return words of index
 	 * 
@@ -159,7 +170,7 @@ public class InvertedIndex
 	 */
 	public int wordsSize()
 	{
-		return getWords().size();
+		return index.size();
 	}
 	
 	/**
@@ -170,7 +181,8 @@ public class InvertedIndex
 	 */
 	public int locationSize(String word)
 	{
-		return getLocations(word).size();
+		TreeMap<String, TreeSet<Integer>> locations = index.get(word);
+		return locations == null ? 0 : locations.size();
 	}
 	
 	/**
@@ -340,7 +352,7 @@ public class InvertedIndex
 		
 		for (String counter : local.count.keySet())
 		{
-			if (!index.containsKey(counter))
+			if (!count.containsKey(counter))
 			{
 				count.put(counter, local.count.get(counter));
 			}
@@ -351,6 +363,128 @@ public class InvertedIndex
 		}
 	}
 	
+	/**
+	 * Adds every local index to this one, as with {@link #addAll(InvertedIndex)}.
+	 *
+	 * @param locals the local indexes to add
+	 */
+	public void addAll(Collection<? extends InvertedIndex> locals)
+	{
+		for (InvertedIndex local : locals)
+		{
+			addAll(local);
+		}
+	}
+
+	/**
+	 * Removes every word position found at the locations, for example so that
+	 * a changed file can be indexed again without its old words.
+	 *
+	 * @param locations the locations to remove
+	 */
+	public void removeLocations(Collection<String> locations)
+	{
+		removeLocations(locations, (word, location) -> {});
+	}
+
+	/**
+	 * Removes every word position found at the locations, and reports each
+	 * word and location removed. Locations that are not in the index are
+	 * skipped, so the words are only scanned if something will be removed.
+	 *
+	 * @param locations the locations to remove
+	 * @param removed called with each word and location removed
+	 */
+	protected void removeLocations(Collection<String> locations, BiConsumer<String, String> removed)
+	{
+		List<String> indexed = new ArrayList<>();
+
+		for (String location : locations)
+		{
+			if (count.containsKey(location))
+			{
+				indexed.add(location);
+			}
+		}
+
+		if (indexed.isEmpty())
+		{
+			return;
+		}
+
+		Iterator<Map.Entry<String, TreeMap<String, TreeSet<Integer>>>> words = index.entrySet().iterator();
+
+		while (words.hasNext())
+		{
+			Map.Entry<String, TreeMap<String, TreeSet<Integer>>> word = words.next();
+
+			for (String location : indexed)
+			{
+				if (word.getValue().remove(location) != null)
+				{
+					removed.accept(word.getKey(), location);
+				}
+			}
+
+			if (word.getValue().isEmpty())
+			{
+				words.remove();
+			}
+		}
+
+		count.keySet().removeAll(indexed);
+	}
+
+	/**
+	 * Creates a copy of this index that shares as much as possible with a
+	 * previous copy. The location maps of words that have not changed since
+	 * the previous copy are shared with it, as are the positions of unchanged
+	 * locations. The map of words and the word counts are always copied, so
+	 * this takes time in proportion to the number of words and locations,
+	 * plus the locations of each changed word. Neither the previous copy nor
+	 * the new copy may be modified afterwards, since they share their data.
+	 *
+	 * @param previous the previous copy of this index
+	 * @param changed the locations that changed for each word since then
+	 * @return a new copy of this index
+	 */
+	protected InvertedIndex snapshot(InvertedIndex previous, Map<String, ? extends Collection<String>> changed)
+	{
+		InvertedIndex copy = new InvertedIndex();
+		copy.index.putAll(previous.index);
+		copy.count.putAll(count);
+
+		for (String word : changed.keySet())
+		{
+			TreeMap<String, TreeSet<Integer>> current = index.get(word);
+
+			if (current == null)
+			{
+				copy.index.remove(word);
+				continue;
+			}
+
+			TreeMap<String, TreeSet<Integer>> shared = previous.index.get(word);
+			TreeMap<String, TreeSet<Integer>> locations = shared != null ? new TreeMap<>(shared) : new TreeMap<>();
+
+			for (String location : changed.get(word))
+			{
+				if (current.containsKey(location))
+				{
+					locations.put(location, new TreeSet<>(current.get(location)));
+				}
+				else
+				{
+					locations.remove(location);
+				}
+			}
+
+			copy.index.put(word, locations);
+		}
+
+		return copy;
+	}
+
 	/**
 	 * Query class
 	 * 
@@ -2,7 +2,9 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +16,10 @@ import java.util.regex.Pattern;
  * @version Spring 2021
  */
 public class LinkParser {
+	/** Regular expression that matches the href value of an anchor tag. */
+	public static final Pattern LINK_REGEX = Pattern.compile(
+			"<a\s*\n*[^>]*?[hH][rR][eE][fF]\s*\n?=\\s*?\"(.+?)\"", Pattern.CASE_INSENSITIVE);
+
 	/**
 	 * Removes the fragment component of a URL (if present), and properly encodes
 	 * the query string (if necessary).
@@ -28,6 +34,104 @@ public class LinkParser {
 				url.getPort(), url.getPath(), url.getQuery(), null).toURL();
 	}
 
+	/**
+	 * Parses an absolute url, which must also be a valid URI.
+	 *
+	 * @param url the url to parse
+	 * @return the url
+	 * @throws MalformedURLException if the url is not a valid absolute url
+	 */
+	public static URL parse(String url) throws MalformedURLException {
+		try {
+			return new URI(url).toURL();
+		}
+		catch (URISyntaxException | IllegalArgumentException e) {
+			MalformedURLException malformed = new MalformedURLException(e.getMessage());
+			malformed.initCause(e);
+			throw malformed;
+		}
+	}
+
+	/**
+	 * Resolves a link relative to a base url and normalizes it, the same as
+	 * normalizing {@code new URL(base, href)} would. The link does not have to
+	 * be a valid URI; characters a URI does not allow (such as spaces) are
+	 * encoded when the url is normalized.
+	 *
+	 * @param base the base url used to convert relative links to absolute
+	 * @param href the link to resolve
+	 * @return the normalized absolute url
+	 * @throws URISyntaxException if unable to craft new URI
+	 * @throws MalformedURLException if unable to craft new URL
+	 *
+	 * @see #normalize(URL)
+	 */
+	public static URL resolve(URL base, String href) throws MalformedURLException, URISyntaxException {
+		URI from = new URI(escape(base.toString()));
+		URI link = new URI(escape(href));
+
+		if (link.isOpaque() && link.getScheme().equalsIgnoreCase(from.getScheme())) {
+			// such as http:page.html, which is relative to a base with that scheme
+			link = new URI(link.getRawSchemeSpecificPart());
+		}
+
+		if (!link.toString().isEmpty() && from.getRawAuthority() != null && from.getRawPath().isEmpty()) {
+			// resolves against the root, the same as a url would
+			String query = from.getRawQuery();
+			from = new URI(from.getScheme() + "://" + from.getRawAuthority() + "/" + (query == null ? "" : "?" + query));
+		}
+
+		URI resolved = link.toString().isEmpty() ? from : from.resolve(link);
+
+		// only the escapes added above are decoded, as the path and query
+		// are otherwise exactly as the link had them
+		resolved = resolved.parseServerAuthority();
+		return new URI(resolved.getScheme(), resolved.getUserInfo(), resolved.getHost(),
+				resolved.getPort(), resolved.getPath(), resolved.getQuery(), null).toURL();
+	}
+
+	/**
+	 * Removes the fragment of a link and percent-encodes every character after
+	 * its authority that a URI does not allow, including any percent signs, so
+	 * that decoding it later gives back exactly the original characters.
+	 *
+	 * @param href the link
+	 * @return the link as a valid URI, without its fragment
+	 */
+	private static String escape(String href) {
+		int fragment = href.indexOf('#');
+		String link = (fragment < 0 ? href : href.substring(0, fragment)).trim();
+		int authority = link.indexOf("//");
+		int start = 0;
+
+		// the authority is left as is, in case it is an IPv6 address
+		if (authority >= 0 && link.substring(0, authority).matches("([a-zA-Z][a-zA-Z0-9+.-]*:)?")) {
+			start = authority + 2;
+
+			while (start < link.length() && "/?".indexOf(link.charAt(start)) < 0) {
+				start++;
+			}
+		}
+
+		StringBuilder escaped = new StringBuilder(link.length() + 16);
+		escaped.append(link, 0, start);
+
+		for (int i = start; i < link.length(); i++) {
+			char c = link.charAt(i);
+
+			if (Character.isISOControl(c) || Character.isSpaceChar(c) || "%\"<>[\\]^`{|}".indexOf(c) >= 0) {
+				for (byte b : String.valueOf(c).getBytes(StandardCharsets.UTF_8)) {
+					escaped.append('%').append(String.format("%02X", b & 0xFF));
+				}
+			}
+			else {
+				escaped.append(c);
+			}
+		}
+
+		return escaped.toString();
+	}
+
 	/**
 	 * Returns a list of all the valid HTTP(S) links found in the href attribute
 	 * of the anchor tags in the provided HTML. The links will be converted to
@@ -44,35 +148,74 @@ public class LinkParser {
 	 */
 	public static ArrayList<URL> getValidLinks(URL base, String html) 
 	{
-		String regex = "<a\s*\n*[^>]*?[hH][rR][eE][fF]\s*\n?=\\s*?\"(.+?)\"";
-		Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-		Matcher matcher = pattern.matcher(html);
-		
-		ArrayList<URL> valid = new ArrayList<URL>();
-
 		if (html == null)
 		{
 			return null;
 		}
 		
+		ArrayList<URL> valid = new ArrayList<URL>();
+		addValidLinks(base, html, valid);
+		return valid;
+	}
+
+	/**
+	 * Adds all the valid HTTP(S) links found in the provided HTML to the list,
+	 * in the same way as {@link #getValidLinks(URL, String)}.
+	 *
+	 * @param base the base url used to convert relative links to absolute
+	 * @param html the html (or part of the html) to find links in
+	 * @param valid the list to add the valid links to
+	 *
+	 * @see #getValidLinks(URL, String)
+	 */
+	public static void addValidLinks(URL base, CharSequence html, List<URL> valid)
+	{
+		Matcher matcher = LINK_REGEX.matcher(html);
+
 		while (matcher.find()) 
 		{
-			try 
+			URL url = getValidLink(base, matcher.group(1));
+
+			if (url != null)
 			{
-				String matched = matcher.group(1);
-				URL url = normalize(new URL(base, matched));
 				valid.add(url);
-			} 
-			catch (MalformedURLException e) 
-			{
-				e.printStackTrace();
-			} 
-			catch (URISyntaxException e) 
-			{
-				e.printStackTrace();
 			}
 		}
-		return valid;
+	}
+
+	/**
+	 * Converts the href value of an anchor tag to an absolute, normalized
+	 * HTTP(S) link.
+	 *
+	 * @param base the base url used to convert relative links to absolute
+	 * @param href the href value
+	 * @return the link, or {@code null} if it cannot be parsed or does not have
+	 *         the HTTP/S protocol
+	 */
+	public static URL getValidLink(URL base, String href)
+	{
+		try 
+		{
+			URL url = resolve(base, href);
+			return isHttp(url) ? url : null;
+		} 
+		catch (MalformedURLException | URISyntaxException e) 
+		{
+			// links that cannot be parsed are not included
+			return null;
+		}
+	}
+
+	/**
+	 * Determines whether the url uses the HTTP or HTTPS protocol.
+	 *
+	 * @param url the url to check
+	 * @return true if the protocol is http or https
+	 */
+	public static boolean isHttp(URL url)
+	{
+		String protocol = url.getProtocol();
+		return protocol.equalsIgnoreCase("http") || protocol.equalsIgnoreCase("https");
 	}
 	
 	/**
@@ -82,19 +225,19 @@ public class LinkParser {
 	 */
 	public static void main(String[] args) throws Exception {
 		// this demonstrates cleaning
-		URL valid = new URL("https://docs.python.org/3/library/functions.html?highlight=string#format");
+		URL valid = parse("https://docs.python.org/3/library/functions.html?highlight=string#format");
 		System.out.println(" Link: " + valid);
 		System.out.println("Clean: " + normalize(valid));
 		System.out.println();
 
 		// this demonstrates encoding
-		URL space = new URL("https://www.google.com/search?q=hello world");
+		String space = "https://www.google.com/search?q=hello world";
 		System.out.println(" Link: " + space);
-		System.out.println("Clean: " + normalize(space));
+		System.out.println("Clean: " + resolve(valid, space));
 		System.out.println();
 
 		// this throws an exception
-		URL invalid = new URL("javascript:alert('Hello!');");
+		URL invalid = parse("javascript:alert('Hello!');");
 		System.out.println(invalid);
 	}
 }
\ No newline at end of file
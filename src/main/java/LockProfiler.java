@@ -0,0 +1,183 @@
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records how long callers wait to acquire the locks of a
+ * {@link SimpleReadWriteLock}, how long they hold them, and how many threads
+ * were already waiting for the same kind of lock, separately for read and
+ * write locks and for each named caller.
+ *
+ * @see SimpleReadWriteLock#readLock(String)
+ * @see SimpleReadWriteLock#writeLock(String)
+ *
+ * @author heidishimek
+ *
+ */
+public class LockProfiler
+{
+	/** The read lock statistics, by caller. */
+	private final ConcurrentHashMap<String, Profile> readers;
+
+	/** The write lock statistics, by caller. */
+	private final ConcurrentHashMap<String, Profile> writers;
+
+	/**
+	 * Initializes an empty profiler.
+	 */
+	public LockProfiler()
+	{
+		this.readers = new ConcurrentHashMap<>();
+		this.writers = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Returns a lock that records its statistics under the caller name before
+	 * delegating to the provided lock.
+	 *
+	 * @param lock the lock to profile
+	 * @param caller the name of the caller using the lock
+	 * @param write whether the lock is a write lock
+	 * @param waiters reports how many threads are waiting for the same kind of
+	 *   lock, such as the waiting readers for a read lock
+	 * @return the profiled lock
+	 */
+	public SimpleLock profile(SimpleLock lock, String caller, boolean write, Waiters waiters)
+	{
+		ConcurrentHashMap<String, Profile> profiles = write ? writers : readers;
+		return profiles.computeIfAbsent(caller, name -> new Profile(lock, waiters));
+	}
+
+	/**
+	 * Returns a summary of the recorded statistics, suitable for writing as
+	 * JSON. Wait and hold times are in microseconds, and the totals are in
+	 * milliseconds so time spent waiting can be compared with time spent holding
+	 * the lock.
+	 *
+	 * @return the statistics for read and write locks, by caller
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("read", summarize(readers));
+		stats.put("write", summarize(writers));
+		return stats;
+	}
+
+	/**
+	 * Summarizes the statistics for each caller.
+	 *
+	 * @param profiles the profiles by caller
+	 * @return the summary by caller, sorted by name
+	 */
+	private static Map<String, Object> summarize(Map<String, Profile> profiles)
+	{
+		Map<String, Object> summary = new TreeMap<>();
+
+		for (Map.Entry<String, Profile> entry : profiles.entrySet())
+		{
+			Profile profile = entry.getValue();
+
+			Map<String, Object> caller = new LinkedHashMap<>();
+			caller.put("acquisitions", profile.wait.count());
+			caller.put("totalWaitMillis", profile.wait.total() / 1_000_000);
+			caller.put("totalHoldMillis", profile.hold.total() / 1_000_000);
+			caller.put("waitMicros", profile.wait.toMap(1000));
+			caller.put("holdMicros", profile.hold.toMap(1000));
+			caller.put("waiters", profile.waiters.toMap(1));
+			summary.put(entry.getKey(), caller);
+		}
+
+		return summary;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * Reports the number of threads waiting on a lock.
+	 */
+	@FunctionalInterface
+	public interface Waiters
+	{
+		/**
+		 * Returns the number of threads currently waiting.
+		 *
+		 * @return number of waiting threads
+		 */
+		public int waiting();
+	}
+
+	/**
+	 * A profiled lock for a single caller, which records the wait time, hold
+	 * time and number of waiters for every acquisition.
+	 */
+	private static class Profile implements SimpleLock
+	{
+		/** The lock being profiled. */
+		private final SimpleLock lock;
+
+		/** Reports the number of threads waiting on the lock. */
+		private final Waiters waiting;
+
+		/** Time spent waiting to acquire the lock, in nanoseconds. */
+		private final Histogram wait;
+
+		/** Time spent holding the lock, in nanoseconds. */
+		private final Histogram hold;
+
+		/** The number of threads already waiting for the lock when acquiring it. */
+		private final Histogram waiters;
+
+		/** When the current thread acquired the lock, one entry per hold. */
+		private final ThreadLocal<ArrayDeque<Long>> acquired;
+
+		/**
+		 * Initializes a profiled lock.
+		 *
+		 * @param lock the lock to profile
+		 * @param waiting reports the number of threads waiting on the lock
+		 */
+		public Profile(SimpleLock lock, Waiters waiting)
+		{
+			this.lock = lock;
+			this.waiting = waiting;
+			this.wait = new Histogram();
+			this.hold = new Histogram();
+			this.waiters = new Histogram();
+			this.acquired = ThreadLocal.withInitial(ArrayDeque::new);
+		}
+
+		@Override
+		public void lock()
+		{
+			waiters.record(waiting.waiting());
+			long start = System.nanoTime();
+
+			lock.lock();
+
+			long now = System.nanoTime();
+			wait.record(now - start);
+			acquired.get().push(now);
+		}
+
+		@Override
+		public void unlock()
+		{
+			Long start = acquired.get().poll();
+			lock.unlock();
+
+			if (start != null)
+			{
+				hold.record(System.nanoTime() - start);
+			}
+		}
+	}
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+
+import opennlp.tools.stemmer.Stemmer;
+import opennlp.tools.stemmer.snowball.SnowballStemmer;
+
+/**
+ * Parses the links of an HTML page like {@link PageParser}, but parses and
+ * stems the cleaned text straight into an index as it arrives instead of
+ * keeping it. Only the last, possibly incomplete, word is held between pieces
+ * of text, so a page can be indexed as it is read from the network without
+ * ever holding all of it in memory.
+ *
+ * The words and positions added are the same as stemming each word
+ * {@link TextParser#parse(String)} finds in the whole cleaned text, with
+ * positions starting at 1. The stemmed words may also be added to a fingerprint of the
+ * page as they are indexed.
+ *
+ * @see DuplicateDetector.Fingerprint
+ *
+ * @author heidishimek
+ *
+ */
+public class PageIndexer extends PageParser
+{
+	/** The index to add to. */
+	private final InvertedIndex index;
+
+	/** The location of the page in the index. */
+	private final String location;
+
+	/** The stemmer to use. */
+	private final Stemmer stemmer;
+
+	/** The text after the last whitespace, which may be part of a word. */
+	private final StringBuilder partial;
+
+	/** The position of the next word. */
+	private int position;
+
+	/** The fingerprint of the page, or {@code null} if not fingerprinting. */
+	private final DuplicateDetector.Fingerprint fingerprint;
+
+	/**
+	 * Initializes a parser that adds to the index.
+	 *
+	 * @param base the url of the page, used as its location in the index
+	 * @param index the index to add to
+	 */
+	public PageIndexer(URL base, InvertedIndex index)
+	{
+		this(base, index, null);
+	}
+
+	/**
+	 * Initializes a parser that adds to the index and to a fingerprint of the
+	 * page.
+	 *
+	 * @param base the url of the page, used as its location in the index
+	 * @param index the index to add to
+	 * @param fingerprint the fingerprint to add the stemmed words to, or
+	 *   {@code null} to not fingerprint the page
+	 */
+	public PageIndexer(URL base, InvertedIndex index, DuplicateDetector.Fingerprint fingerprint)
+	{
+		super(base);
+		this.index = index;
+		this.location = base.toString();
+		this.stemmer = new SnowballStemmer(TextFileStemmer.DEFAULT);
+		this.partial = new StringBuilder();
+		this.position = 1;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Adds the complete words in the text to the index, and holds on to the
+	 * text after the last whitespace until more text arrives. The text held on
+	 * to has no whitespace, so only the new text is searched for it.
+	 *
+	 * @param cleaned the cleaned text
+	 */
+	@Override
+	public void text(CharSequence cleaned)
+	{
+		int held = partial.length();
+		partial.append(cleaned);
+
+		int last = partial.length() - 1;
+
+		while (last >= held && !isSpace(partial.charAt(last)))
+		{
+			last--;
+		}
+
+		if (last >= held)
+		{
+			add(partial.substring(0, last + 1));
+			partial.delete(0, last + 1);
+		}
+	}
+
+	@Override
+	public void end()
+	{
+		add(partial.toString());
+		partial.setLength(0);
+	}
+
+	/**
+	 * Returns the cleaned text, which is not kept by this parser.
+	 *
+	 * @return an empty string
+	 */
+	@Override
+	public String text()
+	{
+		return "";
+	}
+
+	/**
+	 * Returns the fingerprint of the page so far.
+	 *
+	 * @return the fingerprint, or {@code null} if not fingerprinting
+	 */
+	public DuplicateDetector.Fingerprint fingerprint()
+	{
+		return fingerprint;
+	}
+
+	/**
+	 * Parses, stems and adds the words in the text to the index.
+	 *
+	 * @param text the text
+	 */
+	private void add(String text)
+	{
+		try
+		{
+			for (String word : TextParser.parse(text))
+			{
+				String stem = stemmer.stem(word).toString();
+				index.add(stem, location, position);
+				position++;
+
+				if (fingerprint != null)
+				{
+					fingerprint.add(stem);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Checks for the whitespace that {@link TextParser} splits words on, which
+	 * is the Unicode white space property.
+	 *
+	 * @param c the character
+	 * @return {@code true} if the character is whitespace
+	 *
+	 * @see TextParser#SPLIT_REGEX
+	 */
+	private static boolean isSpace(char c)
+	{
+		return Character.isSpaceChar(c) || (c >= '\t' && c <= '\r') || c == '\u0085';
+	}
+}
@@ -0,0 +1,122 @@
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Parses both the links and the cleaned text of an HTML page in a single scan,
+ * instead of searching the html for links and then cleaning it separately. The
+ * links are the same as {@link LinkParser#getValidLinks(URL, String)} finds
+ * after {@link HtmlCleaner#stripBlockElements(String)}, and the text is the
+ * same as {@link HtmlCleaner#stripHtml(String)}.
+ *
+ * The parser may also be used as the handler of an {@link HtmlScanner} that
+ * is written to as the page arrives. Links are kept as they appear in the
+ * html until asked for, so they can be resolved against the url a page was
+ * redirected to if that is only known once it has been fetched.
+ *
+ * @see HtmlScanner
+ *
+ * @author heidishimek
+ *
+ */
+public class PageParser implements HtmlScanner.Handler
+{
+	/** The base url used to convert relative links to absolute. */
+	private final URL base;
+
+	/** The href values of the links found so far, in the order they were found. */
+	private final ArrayList<String> hrefs;
+
+	/** The cleaned text so far. */
+	private final StringBuilder text;
+
+	/**
+	 * Initializes a parser with no links or text.
+	 *
+	 * @param base the base url used to convert relative links to absolute
+	 */
+	public PageParser(URL base)
+	{
+		this.base = base;
+		this.hrefs = new ArrayList<>();
+		this.text = new StringBuilder();
+	}
+
+	@Override
+	public void text(CharSequence cleaned)
+	{
+		text.append(cleaned);
+	}
+
+	/**
+	 * Adds the links in the tag, if it could contain any. Only anchor tags
+	 * (and tags with {@code <a} inside them) are searched.
+	 *
+	 * @param tag the removed tag
+	 */
+	@Override
+	public void tag(CharSequence tag)
+	{
+		for (int i = 0; i < tag.length() - 1; i++)
+		{
+			if (tag.charAt(i) == '<' && (tag.charAt(i + 1) == 'a' || tag.charAt(i + 1) == 'A'))
+			{
+				Matcher matcher = LinkParser.LINK_REGEX.matcher(tag);
+
+				while (matcher.find())
+				{
+					hrefs.add(matcher.group(1));
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the valid links found so far.
+	 *
+	 * @return the links, in the order they were found
+	 */
+	public List<URL> links()
+	{
+		return links(base);
+	}
+
+	/**
+	 * Returns the valid links found so far, with relative links resolved
+	 * against the provided url instead of the url of the page.
+	 *
+	 * @param resolved the url to resolve relative links against, such as the
+	 *   url the page was redirected to
+	 * @return the links, in the order they were found
+	 *
+	 * @see LinkParser#getValidLink(URL, String)
+	 */
+	public List<URL> links(URL resolved)
+	{
+		ArrayList<URL> links = new ArrayList<>(hrefs.size());
+
+		for (String href : hrefs)
+		{
+			URL link = LinkParser.getValidLink(resolved, href);
+
+			if (link != null)
+			{
+				links.add(link);
+			}
+		}
+
+		return links;
+	}
+
+	/**
+	 * Returns the cleaned text so far.
+	 *
+	 * @return the cleaned text
+	 */
+	public String text()
+	{
+		return text.toString();
+	}
+}
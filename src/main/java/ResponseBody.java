@@ -0,0 +1,315 @@
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The body of an HTTP/1.1 response, read from a socket connection as it
+ * arrives. The body is framed by its "Content-Length" header or by chunked
+ * transfer encoding, so reading stops at the end of the body and the connection
+ * is left at the start of the next response. Without either, the body is read
+ * until the server closes the connection.
+ *
+ * Reading also stops once a maximum number of bytes has been read, in which
+ * case the rest of the body is left unread.
+ *
+ * @see HttpsFetcher
+ *
+ * @author heidishimek
+ *
+ */
+public class ResponseBody extends InputStream
+{
+	/** The input from the socket connection. */
+	private final InputStream input;
+
+	/** Whether the body uses chunked transfer encoding. */
+	private final boolean chunked;
+
+	/** Whether the end of the body can be found without the connection closing. */
+	private final boolean framed;
+
+	/** The maximum number of bytes to read. */
+	private final long limit;
+
+	/** The bytes left in the body or current chunk, or -1 if not known. */
+	private long remaining;
+
+	/** The number of bytes read so far. */
+	private long read;
+
+	/** Whether the end of the body has been reached. */
+	private boolean complete;
+
+	/** Whether this body was closed. */
+	private boolean closed;
+
+	/**
+	 * Initializes the body of a response whose headers have just been read.
+	 *
+	 * @param input the input from the socket connection
+	 * @param headers the response headers, with the status line under the
+	 *   {@code null} key
+	 * @param limit the maximum number of bytes to read
+	 * @throws IOException if the "Content-Length" header is not valid
+	 */
+	public ResponseBody(InputStream input, Map<String, List<String>> headers, long limit) throws IOException
+	{
+		int code = HtmlFetcher.getStatusCode(headers);
+		String encoding = getHeader(headers, "Transfer-Encoding");
+		String length = getHeader(headers, "Content-Length");
+
+		this.input = input;
+		this.limit = Math.max(limit, 0);
+		this.chunked = encoding != null && encoding.toLowerCase().contains("chunked");
+		this.framed = chunked || length != null || hasNoBody(code);
+
+		if (hasNoBody(code))
+		{
+			remaining = 0;
+			complete = true;
+		}
+		else if (chunked)
+		{
+			remaining = 0;
+		}
+		else if (length != null)
+		{
+			remaining = parseLength(length, 10);
+			complete = remaining == 0;
+		}
+		else
+		{
+			remaining = -1;
+		}
+	}
+
+	/**
+	 * Checks whether a response with the status code never has a body.
+	 *
+	 * @param code the status code
+	 * @return {@code true} if there is no body
+	 */
+	private static boolean hasNoBody(int code)
+	{
+		return (code >= 100 && code < 200) || code == 204 || code == 304;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] single = new byte[1];
+		return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+
+		if (closed || complete || read >= limit)
+		{
+			return -1;
+		}
+
+		if (chunked && remaining == 0)
+		{
+			nextChunk();
+
+			if (complete)
+			{
+				return -1;
+			}
+		}
+
+		int wanted = (int) Math.min(length, limit - read);
+
+		if (remaining >= 0)
+		{
+			wanted = (int) Math.min(wanted, remaining);
+		}
+
+		int count = input.read(bytes, offset, wanted);
+
+		if (count < 0)
+		{
+			if (framed)
+			{
+				throw new EOFException("Connection closed before the end of the response");
+			}
+
+			complete = true;
+			return -1;
+		}
+
+		read += count;
+
+		if (remaining >= 0)
+		{
+			remaining -= count;
+			complete = !chunked && remaining == 0;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Reads the size of the next chunk, or the trailing header fields after
+	 * the last one.
+	 *
+	 * @throws IOException if unable to read from socket or the chunks are not
+	 *   valid
+	 */
+	private void nextChunk() throws IOException
+	{
+		if (read > 0 && !"".equals(readLine(input)))
+		{
+			throw new IOException("Missing line ending after chunk");
+		}
+
+		String line = readLine(input);
+
+		if (line == null)
+		{
+			throw new EOFException("Connection closed before the end of the response");
+		}
+
+		int extension = line.indexOf(';');
+		remaining = parseLength(extension < 0 ? line : line.substring(0, extension), 16);
+
+		if (remaining == 0)
+		{
+			String trailer;
+
+			while ((trailer = readLine(input)) != null && !trailer.isEmpty())
+			{
+				// trailing header fields are not used
+			}
+
+			complete = true;
+		}
+	}
+
+	/**
+	 * Stops reading the body. The connection is left open, and can only be
+	 * reused if the whole body was read.
+	 *
+	 * @see #isComplete()
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+	}
+
+	/**
+	 * Returns whether the whole body was read, and the end of it was found
+	 * without the connection closing. Only then may the connection be reused.
+	 *
+	 * @return {@code true} if the whole body was read
+	 */
+	public boolean isComplete()
+	{
+		return complete && framed;
+	}
+
+	/**
+	 * Returns whether reading stopped at the maximum number of bytes before the
+	 * end of the body.
+	 *
+	 * @return {@code true} if the body was cut short
+	 */
+	public boolean isTruncated()
+	{
+		return !complete && read >= limit;
+	}
+
+	/**
+	 * Returns the number of bytes of the body read so far.
+	 *
+	 * @return the number of bytes read
+	 */
+	public long bytesRead()
+	{
+		return read;
+	}
+
+	/**
+	 * Returns the first value of a header, ignoring the case of its name.
+	 *
+	 * @param headers the header fields
+	 * @param name the header name
+	 * @return the first value, or {@code null} if there is no such header
+	 */
+	public static String getHeader(Map<String, List<String>> headers, String name)
+	{
+		for (Map.Entry<String, List<String>> entry : headers.entrySet())
+		{
+			if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty())
+			{
+				return entry.getValue().get(0);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads a line of a response, without the line ending.
+	 *
+	 * @param input the input from a socket connection
+	 * @return the line, or {@code null} if the input ended before any bytes
+	 * @throws IOException if unable to read from socket
+	 */
+	public static String readLine(InputStream input) throws IOException
+	{
+		ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int next;
+
+		while ((next = input.read()) != -1 && next != '\n')
+		{
+			line.write(next);
+		}
+
+		if (next == -1 && line.size() == 0)
+		{
+			return null;
+		}
+
+		String text = line.toString(StandardCharsets.ISO_8859_1);
+		return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+	}
+
+	/**
+	 * Parses a length from a "Content-Length" header or chunk size line.
+	 *
+	 * @param value the length to parse
+	 * @param radix the radix of the length
+	 * @return the length
+	 * @throws IOException if the length is not valid
+	 */
+	private static long parseLength(String value, int radix) throws IOException
+	{
+		try
+		{
+			long length = Long.parseLong(value.trim(), radix);
+
+			if (length < 0)
+			{
+				throw new IOException("Invalid response length: " + value);
+			}
+
+			return length;
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Invalid response length: " + value, e);
+		}
+	}
+}
@@ -0,0 +1,571 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides whether urls may be crawled according to the robots.txt file of
+ * their host. Each robots.txt file is fetched once per host and kept for a
+ * time to live, so checking a url almost never costs a fetch.
+ *
+ * The rules of each file are compiled into a {@link Rules} matcher: plain path
+ * prefixes go into a trie, so the longest matching prefix is found in a single
+ * walk along the path, and only the (usually few) patterns with wildcards are
+ * matched one at a time. As the standard requires, the longest matching rule
+ * wins, and "Allow" wins a tie.
+ *
+ * Files that are missing allow everything. Hosts whose file cannot be fetched
+ * because of a server error or network failure are not crawled at all until
+ * the file is fetched again, which is tried again after a much shorter
+ * {@link #RETRY} interval than the time to live, so a single failure does not
+ * keep a host out of the whole crawl.
+ *
+ * The crawler only checks a url during the turn its host was given by the
+ * {@link HostScheduler}, so fetching a robots.txt file is held to the same
+ * per-host limits as the request that needed it.
+ *
+ * @see WebCrawler
+ *
+ * @author heidishimek
+ *
+ */
+public class RobotsCache
+{
+	/** The default user agent the rules are chosen for. */
+	public static final String AGENT = "*";
+
+	/** The default time each robots.txt file is kept. */
+	public static final Duration TTL = Duration.ofHours(24);
+
+	/** The default time before a robots.txt file that could not be fetched is tried again. */
+	public static final Duration RETRY = Duration.ofMinutes(1);
+
+	/** The most bytes read from a robots.txt file, as the standard allows. */
+	public static final long MAX_BYTES = 500 * 1024;
+
+	/** The number of redirects to follow when fetching a robots.txt file. */
+	public static final int REDIRECTS = 5;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The user agent the rules are chosen for, in lowercase. */
+	private final String agent;
+
+	/** How long each robots.txt file is kept, in nanoseconds. */
+	private final long ttl;
+
+	/** How long before a file that could not be fetched is tried again, in nanoseconds. */
+	private final long retry;
+
+	/** The robots.txt file of each host, keyed by protocol, host and port. */
+	private final ConcurrentHashMap<String, Host> hosts;
+
+	/** The number of robots.txt files fetched. */
+	private final LongAdder fetched;
+
+	/** The number of robots.txt files that could not be fetched. */
+	private final LongAdder unavailable;
+
+	/** The number of urls checked. */
+	private final LongAdder checked;
+
+	/** The number of urls disallowed. */
+	private final LongAdder disallowed;
+
+	/**
+	 * Initializes a cache that uses the rules for every user agent and keeps
+	 * each file for the default time to live.
+	 */
+	public RobotsCache()
+	{
+		this(AGENT, TTL);
+	}
+
+	/**
+	 * Initializes a cache.
+	 *
+	 * @param agent the user agent to choose the rules for, or "*" to only use
+	 *   the rules for every user agent
+	 * @param ttl how long each robots.txt file is kept before it is fetched
+	 *   again
+	 */
+	public RobotsCache(String agent, Duration ttl)
+	{
+		this(agent, ttl, RETRY);
+	}
+
+	/**
+	 * Initializes a cache.
+	 *
+	 * @param agent the user agent to choose the rules for, or "*" to only use
+	 *   the rules for every user agent
+	 * @param ttl how long each robots.txt file is kept before it is fetched
+	 *   again
+	 * @param retry how long before a file that could not be fetched is tried
+	 *   again, which is never longer than the time to live
+	 */
+	public RobotsCache(String agent, Duration ttl, Duration retry)
+	{
+		this.agent = agent.trim().toLowerCase();
+		this.ttl = Math.max(ttl.toNanos(), 0);
+		this.retry = Math.min(Math.max(retry.toNanos(), 0), this.ttl);
+		this.hosts = new ConcurrentHashMap<>();
+		this.fetched = new LongAdder();
+		this.unavailable = new LongAdder();
+		this.checked = new LongAdder();
+		this.disallowed = new LongAdder();
+	}
+
+	/**
+	 * Checks whether the url may be crawled. The first check for a host (and
+	 * the first after its file expires) fetches its robots.txt file, while
+	 * other checks for the same host wait for it.
+	 *
+	 * @param url the normalized url to check
+	 * @return {@code true} if the url may be crawled
+	 */
+	public boolean isAllowed(URL url)
+	{
+		checked.increment();
+
+		String origin = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+		Rules rules = hosts.computeIfAbsent(origin, key -> new Host()).rules(url);
+		String path = url.getFile().isEmpty() ? "/" : url.getFile();
+
+		if (rules.isAllowed(path))
+		{
+			return true;
+		}
+
+		disallowed.increment();
+		return false;
+	}
+
+	/**
+	 * Fetches and compiles the robots.txt file for the host of a url.
+	 *
+	 * @param url a url on the host
+	 * @return the rules of the host
+	 */
+	private Rules fetch(URL url)
+	{
+		fetched.increment();
+
+		try
+		{
+			URL current = new URI(url.getProtocol(), null, url.getHost(), url.getPort(), "/robots.txt", null, null).toURL();
+
+			for (int redirects = REDIRECTS; redirects >= 0; redirects--)
+			{
+				StringWriter content = new StringWriter();
+				Map<String, List<String>> headers = HttpsFetcher.fetchURL(current,
+						response -> HtmlFetcher.getStatusCode(response) / 100 == 2, MAX_BYTES, content);
+				int status = HtmlFetcher.getStatusCode(headers);
+
+				if (HtmlFetcher.isRedirect(headers) && redirects > 0)
+				{
+					current = LinkParser.resolve(current, headers.get("Location").get(0));
+				}
+				else if (status >= 200 && status < 300)
+				{
+					return Rules.parse(content.toString(), agent);
+				}
+				else if (status >= 500 || status < 0)
+				{
+					break;
+				}
+				else
+				{
+					return Rules.ALLOW_ALL;
+				}
+			}
+		}
+		catch (MalformedURLException | URISyntaxException e)
+		{
+			log.debug("Unable to follow the robots.txt redirect for {}.", url, e);
+			return Rules.ALLOW_ALL;
+		}
+		catch (IOException e)
+		{
+			log.debug("Unable to fetch the robots.txt file for {}.", url, e);
+		}
+
+		unavailable.increment();
+		return Rules.DISALLOW_ALL;
+	}
+
+	/**
+	 * Returns a summary of the files fetched and urls checked, suitable for
+	 * writing as JSON.
+	 *
+	 * @return the robots.txt statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("hosts", hosts.size());
+		stats.put("fetched", fetched.sum());
+		stats.put("unavailable", unavailable.sum());
+		stats.put("checked", checked.sum());
+		stats.put("disallowed", disallowed.sum());
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * The robots.txt file of a single host, fetched when first needed and again
+	 * once it expires, or sooner if it could not be fetched.
+	 */
+	private class Host
+	{
+		/** The compiled rules, or {@code null} until fetched. */
+		private Rules rules;
+
+		/** When the rules were fetched, in nanoseconds. */
+		private long fetchedAt;
+
+		/** How long the rules are kept, in nanoseconds. */
+		private long keep;
+
+		/**
+		 * Initializes a host whose rules are not fetched yet.
+		 */
+		public Host()
+		{
+			this.rules = null;
+			this.fetchedAt = 0;
+			this.keep = 0;
+		}
+
+		/**
+		 * Returns the rules of the host, fetching them if needed.
+		 *
+		 * @param url a url on the host
+		 * @return the rules
+		 */
+		public synchronized Rules rules(URL url)
+		{
+			if (rules == null || System.nanoTime() - fetchedAt >= keep)
+			{
+				rules = fetch(url);
+				fetchedAt = System.nanoTime();
+
+				// only returned by fetch when the file could not be fetched
+				keep = rules == Rules.DISALLOW_ALL ? retry : ttl;
+			}
+
+			return rules;
+		}
+	}
+
+	/**
+	 * The compiled "Allow" and "Disallow" rules of a robots.txt file that apply
+	 * to one user agent.
+	 */
+	public static class Rules
+	{
+		/** Rules that allow every path. */
+		public static final Rules ALLOW_ALL = new Rules();
+
+		/** Rules that disallow every path. */
+		public static final Rules DISALLOW_ALL = new Rules();
+
+		static
+		{
+			DISALLOW_ALL.add("/", false);
+		}
+
+		/** The root of the trie of plain path prefixes. */
+		private final Node root;
+
+		/** The patterns that contain wildcards. */
+		private final List<Pattern> patterns;
+
+		/**
+		 * Initializes rules that allow every path.
+		 */
+		private Rules()
+		{
+			this.root = new Node();
+			this.patterns = new ArrayList<>();
+		}
+
+		/**
+		 * Parses a robots.txt file, keeping the rules of the groups that name the
+		 * user agent or, if there are none, of the groups for every user agent.
+		 *
+		 * @param text the text of the file
+		 * @param agent the user agent, in lowercase
+		 * @return the compiled rules
+		 */
+		public static Rules parse(String text, String agent)
+		{
+			Rules named = new Rules();
+			Rules everyone = new Rules();
+			boolean isNamed = false;
+			boolean inAgents = false;
+			boolean forAgent = false;
+			boolean forEveryone = false;
+
+			for (String line : text.split("\r\n|\r|\n"))
+			{
+				int comment = line.indexOf('#');
+				int colon = (comment < 0 ? line : line.substring(0, comment)).indexOf(':');
+
+				if (colon < 0)
+				{
+					continue;
+				}
+
+				String key = line.substring(0, colon).trim().toLowerCase();
+				String value = line.substring(colon + 1, comment < 0 ? line.length() : comment).trim();
+
+				if (key.equals("user-agent"))
+				{
+					// consecutive user-agent lines start the same group
+					if (!inAgents)
+					{
+						forAgent = false;
+						forEveryone = false;
+					}
+
+					inAgents = true;
+					forEveryone |= value.equals("*");
+					forAgent |= !agent.equals("*") && value.equalsIgnoreCase(agent);
+					isNamed |= forAgent;
+					continue;
+				}
+
+				inAgents = false;
+				boolean allow = key.equals("allow");
+
+				if ((allow || key.equals("disallow")) && !value.isEmpty())
+				{
+					if (forAgent)
+					{
+						named.add(value, allow);
+					}
+
+					if (forEveryone)
+					{
+						everyone.add(value, allow);
+					}
+				}
+			}
+
+			return isNamed ? named : everyone;
+		}
+
+		/**
+		 * Adds a rule.
+		 *
+		 * @param pattern the path pattern, which may contain "*" and end in "$"
+		 * @param allow whether the rule allows or disallows matching paths
+		 */
+		private void add(String pattern, boolean allow)
+		{
+			boolean exact = pattern.endsWith("$");
+			String prefix = exact ? pattern.substring(0, pattern.length() - 1) : pattern;
+
+			if (prefix.indexOf('*') >= 0)
+			{
+				patterns.add(new Pattern(pattern, allow));
+				return;
+			}
+
+			Node node = root;
+
+			for (int i = 0; i < prefix.length(); i++)
+			{
+				node = node.children.computeIfAbsent(prefix.charAt(i), key -> new Node());
+			}
+
+			int rule = allow ? Node.ALLOW : Node.DISALLOW;
+
+			if (exact)
+			{
+				node.exact = Math.max(node.exact, rule);
+			}
+			else
+			{
+				node.prefix = Math.max(node.prefix, rule);
+			}
+		}
+
+		/**
+		 * Checks whether a path may be crawled.
+		 *
+		 * @param path the path and query of a url
+		 * @return {@code true} if the path may be crawled
+		 */
+		public boolean isAllowed(String path)
+		{
+			int longest = -1;
+			int rule = Node.NONE;
+			Node node = root;
+
+			for (int i = 0; node != null; i++)
+			{
+				if (node.prefix != Node.NONE)
+				{
+					longest = i;
+					rule = node.prefix;
+				}
+
+				if (i == path.length())
+				{
+					// the "$" counts towards the length of the rule
+					if (node.exact != Node.NONE)
+					{
+						longest = i + 1;
+						rule = node.exact;
+					}
+
+					break;
+				}
+
+				node = node.children.get(path.charAt(i));
+			}
+
+			for (Pattern pattern : patterns)
+			{
+				int length = pattern.text.length();
+
+				if ((length > longest || length == longest && pattern.allow) && pattern.matches(path))
+				{
+					longest = length;
+					rule = pattern.allow ? Node.ALLOW : Node.DISALLOW;
+				}
+			}
+
+			return rule != Node.DISALLOW;
+		}
+	}
+
+	/**
+	 * A node in the trie of plain path prefixes.
+	 */
+	private static class Node
+	{
+		/** No rule ends at the node. */
+		private static final int NONE = 0;
+
+		/** A "Disallow" rule ends at the node. */
+		private static final int DISALLOW = 1;
+
+		/** An "Allow" rule ends at the node, which wins over "Disallow". */
+		private static final int ALLOW = 2;
+
+		/** The next node for each character. */
+		private final Map<Character, Node> children;
+
+		/** The rule for paths that start with the prefix. */
+		private int prefix;
+
+		/** The rule for paths that are exactly the prefix. */
+		private int exact;
+
+		/**
+		 * Initializes a node with no children and no rules.
+		 */
+		public Node()
+		{
+			this.children = new HashMap<>();
+			this.prefix = NONE;
+			this.exact = NONE;
+		}
+	}
+
+	/**
+	 * A rule whose pattern contains "*" wildcards.
+	 */
+	private static class Pattern
+	{
+		/** The pattern as written. */
+		private final String text;
+
+		/** Whether the rule allows matching paths. */
+		private final boolean allow;
+
+		/**
+		 * Initializes a pattern.
+		 *
+		 * @param text the pattern as written
+		 * @param allow whether the rule allows matching paths
+		 */
+		private Pattern(String text, boolean allow)
+		{
+			this.text = text;
+			this.allow = allow;
+		}
+
+		/**
+		 * Checks whether a path matches the pattern. A pattern matches paths
+		 * that start with it, unless it ends in "$", in which case it must match
+		 * the whole path.
+		 *
+		 * @param path the path to match
+		 * @return {@code true} if the path matches
+		 */
+		private boolean matches(String path)
+		{
+			String pattern = text.endsWith("$") ? text.substring(0, text.length() - 1) : text + "*";
+			int i = 0;
+			int j = 0;
+			int star = -1;
+			int mark = 0;
+
+			while (j < path.length())
+			{
+				if (i < pattern.length() && pattern.charAt(i) == '*')
+				{
+					star = i++;
+					mark = j;
+				}
+				else if (i < pattern.length() && pattern.charAt(i) == path.charAt(j))
+				{
+					i++;
+					j++;
+				}
+				else if (star >= 0)
+				{
+					// let the last wildcard match one more character and retry
+					i = star + 1;
+					j = ++mark;
+				}
+				else
+				{
+					return false;
+				}
+			}
+
+			while (i < pattern.length() && pattern.charAt(i) == '*')
+			{
+				i++;
+			}
+
+			return i == pattern.length();
+		}
+	}
+}
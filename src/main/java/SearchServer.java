@@ -0,0 +1,518 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Answers search requests over HTTP from an index kept in memory, using an
+ * embedded Jetty server.
+ *
+ * Searches are made with {@code GET /search?q=...}, optionally with
+ * {@code exact=true} for an exact search instead of a partial one, and
+ * {@code k=...} for the number of results to return. The query is stemmed the
+ * same way as queries read from a file, and the response is a JSON object with
+ * the stemmed query, the total number of matches and the top results.
+ * {@code GET /suggest?q=...} suggests the most common words of the index that
+ * start with the last word of the query, from a {@link TermTrie} built when
+ * the server starts, so suggestions never search the index.
+ * {@code GET /stats} returns the request latency percentiles, which are also
+ * logged periodically and printed when the server stops.
+ *
+ * The index may still be changing while it is served, for example when it is
+ * updated by an {@link IndexUpdater}. Searches always use the latest published
+ * snapshot, and the suggestions are rebuilt in the background at most once
+ * every {@link #REFRESH_INTERVAL} milliseconds after the index changes, while
+ * requests keep using the previous ones.
+ *
+ * Requests are handled by a bounded thread pool with a bounded queue, so a
+ * burst of requests is queued rather than starting more threads, and once the
+ * queue is full new requests are turned away instead of piling up. A query is
+ * run as soon as the server starts, so the first real query does not pay for
+ * loading the search and stemming classes.
+ *
+ * @see Driver
+ *
+ * @author heidishimek
+ *
+ */
+public class SearchServer
+{
+	/** The default port. */
+	public static final int PORT = 8080;
+
+	/** The default maximum number of threads handling requests. */
+	public static final int THREADS = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+	/** The default number of results returned. */
+	public static final int TOP_K = 10;
+
+	/** The default number of suggestions returned. */
+	public static final int SUGGESTIONS = 5;
+
+	/** The most results returned, however many are asked for. */
+	public static final int MAX_K = 1000;
+
+	/** How often request latencies are logged, in milliseconds. */
+	public static final long LOG_INTERVAL = 60_000;
+
+	/** How often the suggestions may be rebuilt, in milliseconds. */
+	public static final long REFRESH_INTERVAL = 1_000;
+
+	/** The number of requests queued for each thread before turning them away. */
+	private static final int QUEUE_PER_THREAD = 64;
+
+	/** How long an idle thread is kept, in milliseconds. */
+	private static final int IDLE_TIMEOUT = 60_000;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
+	/** The index searched. */
+	private final InvertedIndex index;
+
+	/** The Jetty server. */
+	private final Server server;
+
+	/** Applies updates to the index while it is served, or {@code null}. */
+	private final IndexUpdater updater;
+
+	/** The words of the index, used for suggestions. */
+	private volatile TermTrie terms;
+
+	/** The snapshot of the index the suggestions were built from. */
+	private volatile InvertedIndex termsSource;
+
+	/** When the suggestions were last built, in nanoseconds. */
+	private volatile long termsBuilt;
+
+	/** Whether the suggestions are being rebuilt. */
+	private final AtomicBoolean refreshing;
+
+	/** How long each search request took, in nanoseconds. */
+	private final Histogram latency;
+
+	/** How long each suggestion lookup took, in nanoseconds. */
+	private final Histogram suggestLatency;
+
+	/** When the latencies were last logged, in nanoseconds. */
+	private final AtomicLong logged;
+
+	/**
+	 * Initializes a server. The server is not started until {@link #start()} is
+	 * called.
+	 *
+	 * @param index the index to search
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param threads the maximum number of threads handling requests
+	 */
+	public SearchServer(InvertedIndex index, int port, int threads)
+	{
+		this(index, port, threads, null);
+	}
+
+	/**
+	 * Initializes a server for an index that is updated while it is served. The
+	 * server is not started until {@link #start()} is called.
+	 *
+	 * @param index the index to search
+	 * @param port the port to listen on, or 0 for any free port
+	 * @param threads the maximum number of threads handling requests
+	 * @param updater applies updates to the index, whose statistics are
+	 *   included in the server statistics, or {@code null}
+	 */
+	public SearchServer(InvertedIndex index, int port, int threads, IndexUpdater updater)
+	{
+		this.index = index;
+		this.updater = updater;
+		this.terms = new TermTrie(new String[0], new int[0]);
+		this.refreshing = new AtomicBoolean();
+		this.latency = new Histogram();
+		this.suggestLatency = new Histogram();
+		this.logged = new AtomicLong(System.nanoTime());
+
+		int max = Math.max(threads, 8);
+		QueuedThreadPool pool = new QueuedThreadPool(max, Math.min(max, 8), IDLE_TIMEOUT,
+				new BlockingArrayQueue<>(max * 2, max, max * QUEUE_PER_THREAD));
+		pool.setName("search");
+
+		this.server = new Server(pool);
+
+		ServerConnector connector = new ServerConnector(server);
+		connector.setPort(port);
+		server.addConnector(connector);
+
+		ServletContextHandler context = new ServletContextHandler();
+		context.addServlet(new ServletHolder(new SearchServlet()), "/search");
+		context.addServlet(new ServletHolder(new SuggestServlet()), "/suggest");
+		context.addServlet(new ServletHolder(new StatsServlet()), "/stats");
+		server.setHandler(context);
+		server.setStopAtShutdown(true);
+	}
+
+	/**
+	 * Builds the suggestions, starts the server and runs a first query.
+	 *
+	 * @throws Exception if unable to start the server
+	 */
+	public void start() throws Exception
+	{
+		long start = System.nanoTime();
+		buildTerms();
+		server.start();
+		search("warm up", false, 1);
+		suggest("warm", 1);
+		log.info("Search server started on port {} in {} ms with {}.", port(), (System.nanoTime() - start) / 1_000_000, terms);
+	}
+
+	/**
+	 * Builds the suggestions from the latest snapshot of the index.
+	 */
+	private void buildTerms()
+	{
+		InvertedIndex source = source();
+		terms = TermTrie.of(source);
+		termsSource = source;
+		termsBuilt = System.nanoTime();
+	}
+
+	/**
+	 * Returns the latest snapshot of the index, or the index itself if it does
+	 * not publish snapshots.
+	 *
+	 * @return the index to build the suggestions from
+	 */
+	private InvertedIndex source()
+	{
+		return index instanceof ThreadSafeInvertedIndex safe ? safe.snapshot() : index;
+	}
+
+	/**
+	 * Rebuilds the suggestions in the background if the index changed since
+	 * they were built, and enough time has passed since then. Only one rebuild
+	 * runs at a time, and requests keep using the previous suggestions until it
+	 * is done.
+	 */
+	private void refreshTerms()
+	{
+		if (source() == termsSource || System.nanoTime() - termsBuilt < REFRESH_INTERVAL * 1_000_000)
+		{
+			return;
+		}
+
+		if (refreshing.compareAndSet(false, true))
+		{
+			Thread.ofVirtual().name("suggest-refresh").start(() ->
+			{
+				try
+				{
+					buildTerms();
+				}
+				catch (RuntimeException e)
+				{
+					log.error("Unable to rebuild the suggestions.", e);
+				}
+				finally
+				{
+					refreshing.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for the server to stop.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void join() throws InterruptedException
+	{
+		server.join();
+	}
+
+	/**
+	 * Stops the server.
+	 *
+	 * @throws Exception if unable to stop the server
+	 */
+	public void stop() throws Exception
+	{
+		server.stop();
+	}
+
+	/**
+	 * Returns the port the server is listening on.
+	 *
+	 * @return the port
+	 */
+	public int port()
+	{
+		return ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+	}
+
+	/**
+	 * Searches the index the same way as a line of a query file.
+	 *
+	 * @param line the query as entered
+	 * @param exact whether to search for exact matches only
+	 * @param k the number of results to return
+	 * @return the stemmed query, the number of matches and the top results
+	 */
+	public Map<String, Object> search(String line, boolean exact, int k)
+	{
+		TreeSet<String> stems = TextFileStemmer.uniqueStems(line);
+		Collection<InvertedIndex.QueryResult> results = stems.isEmpty() ? List.of() : index.search(stems, exact);
+		List<Map<String, Object>> top = new ArrayList<>(Math.min(results.size(), k));
+
+		for (InvertedIndex.QueryResult result : results)
+		{
+			if (top.size() >= k)
+			{
+				break;
+			}
+
+			Map<String, Object> match = new LinkedHashMap<>();
+			match.put("where", result.getLocation());
+			match.put("count", result.getMatchesCount());
+			match.put("score", result.getScore());
+			top.add(match);
+		}
+
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("query", String.join(" ", stems));
+		response.put("exact", exact);
+		response.put("total", results.size());
+		response.put("results", top);
+		return response;
+	}
+
+	/**
+	 * Suggests the most common words of the index that start with the last
+	 * word of the query.
+	 *
+	 * @param line the query as entered so far
+	 * @param n the number of suggestions to return
+	 * @return the prefix and the suggested words, with the number of locations
+	 *   of each
+	 */
+	public Map<String, Object> suggest(String line, int n)
+	{
+		long start = System.nanoTime();
+		refreshTerms();
+		String[] words = TextParser.parse(line);
+		String prefix = words.length == 0 ? "" : words[words.length - 1];
+		TermTrie trie = terms;
+		List<Map<String, Object>> suggestions = new ArrayList<>();
+
+		for (String word : prefix.isEmpty() ? List.<String>of() : trie.suggest(prefix, n))
+		{
+			Map<String, Object> suggestion = new LinkedHashMap<>();
+			suggestion.put("word", word);
+			suggestion.put("locations", trie.frequency(word));
+			suggestions.add(suggestion);
+		}
+
+		suggestLatency.record(System.nanoTime() - start);
+
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("prefix", prefix);
+		response.put("suggestions", suggestions);
+		return response;
+	}
+
+	/**
+	 * Returns the request latency percentiles, in milliseconds, suitable for
+	 * writing as JSON. Suggestion lookups are reported in microseconds. If the
+	 * index is updated while served, the update statistics are included.
+	 *
+	 * @return the request statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("latencyMillis", latency.toMap(1_000_000));
+		stats.put("suggestMicros", suggestLatency.toMap(1_000));
+		stats.put("suggestWords", terms.size());
+
+		if (updater != null)
+		{
+			stats.put("updates", updater.stats());
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Records how long a request took, and logs the latencies if enough time
+	 * has passed since they were last logged.
+	 *
+	 * @param elapsed how long the request took, in nanoseconds
+	 */
+	private void record(long elapsed)
+	{
+		latency.record(elapsed);
+
+		long now = System.nanoTime();
+		long last = logged.get();
+
+		if (now - last >= LOG_INTERVAL * 1_000_000 && logged.compareAndSet(last, now))
+		{
+			log.info("Search request latency (ms): {}", latency.toMap(1_000_000));
+		}
+	}
+
+	/**
+	 * Writes a JSON response.
+	 *
+	 * @param response the response
+	 * @param status the status code
+	 * @param body the body of the response
+	 * @throws IOException if unable to write the response
+	 */
+	private static void json(HttpServletResponse response, int status, Object body) throws IOException
+	{
+		response.setStatus(status);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+
+		PrintWriter writer = response.getWriter();
+		SimpleJsonWriter.asJson(body, writer, 0);
+		writer.write("\n");
+	}
+
+	/**
+	 * Answers search requests.
+	 */
+	private class SearchServlet extends HttpServlet
+	{
+		/** Unused */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Initializes a servlet for search requests.
+		 */
+		public SearchServlet()
+		{
+			super();
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			long start = System.nanoTime();
+			String query = request.getParameter("q");
+			int k = TOP_K;
+
+			try
+			{
+				if (request.getParameter("k") != null)
+				{
+					k = Math.max(Math.min(Integer.parseInt(request.getParameter("k")), MAX_K), 0);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				json(response, HttpServletResponse.SC_BAD_REQUEST, Map.of("error", "Invalid k: " + request.getParameter("k")));
+				return;
+			}
+
+			if (query == null)
+			{
+				json(response, HttpServletResponse.SC_BAD_REQUEST, Map.of("error", "Missing query parameter q"));
+				return;
+			}
+
+			json(response, HttpServletResponse.SC_OK, search(query, Boolean.parseBoolean(request.getParameter("exact")), k));
+			record(System.nanoTime() - start);
+		}
+
+		@Override
+		public void destroy()
+		{
+			// printed since logging may already be shut down when the server stops
+			System.out.println("Search request latency (ms): " + latency.toMap(1_000_000));
+		}
+	}
+
+	/**
+	 * Answers suggestion requests.
+	 */
+	private class SuggestServlet extends HttpServlet
+	{
+		/** Unused */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Initializes a servlet for suggestion requests.
+		 */
+		public SuggestServlet()
+		{
+			super();
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			String query = request.getParameter("q");
+			int n = SUGGESTIONS;
+
+			try
+			{
+				if (request.getParameter("n") != null)
+				{
+					n = Math.max(Math.min(Integer.parseInt(request.getParameter("n")), TermTrie.TOP_N), 0);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				json(response, HttpServletResponse.SC_BAD_REQUEST, Map.of("error", "Invalid n: " + request.getParameter("n")));
+				return;
+			}
+
+			json(response, HttpServletResponse.SC_OK, suggest(query == null ? "" : query, n));
+		}
+	}
+
+	/**
+	 * Answers requests for the request statistics.
+	 */
+	private class StatsServlet extends HttpServlet
+	{
+		/** Unused */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Initializes a servlet for statistics requests.
+		 */
+		public StatsServlet()
+		{
+			super();
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			json(response, HttpServletResponse.SC_OK, stats());
+		}
+	}
+}
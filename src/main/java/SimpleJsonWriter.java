@@ -398,6 +398,118 @@ public class SimpleJsonWriter
 		}
 	}
 
+	/**
+	 * Writes a general element as pretty JSON. Maps become objects (using the
+	 * string value of each key), collections become arrays, numbers and booleans
+	 * are written as-is (except for NaN and infinite values, which JSON cannot
+	 * represent and are written as {@code null}), and everything else is
+	 * written as a quoted string. This
+	 * is used for reports like run statistics, where the structure is not known
+	 * ahead of time.
+	 *
+	 * @param element the element to write
+	 * @param writer the writer to use
+	 * @param level the initial indent level
+	 * @throws IOException if an IO error occurs
+	 */
+	public static void asJson(Object element, Writer writer, int level) throws IOException
+	{
+		if (element instanceof Map<?, ?> map)
+		{
+			Iterator<? extends Map.Entry<?, ?>> i = map.entrySet().iterator();
+			writer.write("{");
+
+			while (i.hasNext())
+			{
+				Map.Entry<?, ?> entry = i.next();
+				writer.write("\n");
+				quote(escape(String.valueOf(entry.getKey())), writer, level + 1);
+				writer.write(": ");
+				asJson(entry.getValue(), writer, level + 1);
+				writer.write(i.hasNext() ? "," : "\n");
+			}
+
+			indent("}", writer, map.isEmpty() ? 0 : level);
+		}
+		else if (element instanceof Collection<?> collection)
+		{
+			Iterator<?> i = collection.iterator();
+			writer.write("[");
+
+			while (i.hasNext())
+			{
+				writer.write("\n");
+				indent("", writer, level + 1);
+				asJson(i.next(), writer, level + 1);
+				writer.write(i.hasNext() ? "," : "\n");
+			}
+
+			indent("]", writer, collection.isEmpty() ? 0 : level);
+		}
+		else if ((element instanceof Double || element instanceof Float) && !Double.isFinite(((Number) element).doubleValue()))
+		{
+			writer.write("null");
+		}
+		else if (element instanceof Number || element instanceof Boolean || element == null)
+		{
+			writer.write(String.valueOf(element));
+		}
+		else
+		{
+			quote(escape(element.toString()), writer, 0);
+		}
+	}
+
+	/**
+	 * Writes a general element as pretty JSON to file.
+	 *
+	 * @param element the element to write
+	 * @param path the file path to use
+	 * @throws IOException if an IO error occurs
+	 *
+	 * @see #asJson(Object, Writer, int)
+	 */
+	public static void asJson(Object element, Path path) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8))
+		{
+			asJson(element, writer, 0);
+			writer.write("\n");
+		}
+	}
+
+	/**
+	 * Escapes backslashes, quotation marks and control characters so the text
+	 * can be written inside a JSON string.
+	 *
+	 * @param text the text to escape
+	 * @return the escaped text
+	 */
+	public static String escape(String text)
+	{
+		StringBuilder escaped = new StringBuilder(text.length());
+
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+
+			if (c == '"' || c == '\\')
+			{
+				escaped.append('\\').append(c);
+			}
+			else if (c < ' ')
+			{
+				escaped.append(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				escaped.append(c);
+			}
+		}
+
+		return escaped.toString();
+	}
+
 	/**
 	 * Indents and then writes the String element.
 	 *
@@ -10,6 +10,14 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * threads, so long as there are no writers. The write lock is exclusive. The 
  * active writer is able to acquire read or write locks as long as it is active.
  *
+ * Writers are preferred: once a writer is waiting, new readers wait until it
+ * has finished, so a steady stream of readers cannot starve writers. Threads
+ * that already hold the read lock may acquire it again without waiting.
+ *
+ * If profiling is enabled, the locks returned by {@link #readLock(String)} and
+ * {@link #writeLock(String)} record wait time, hold time and the number of
+ * waiting threads for each named caller in a {@link LockProfiler}.
+ *
  * <!-- simplified lock used for this class -->
  * @see SimpleLock 
  * 
@@ -39,6 +47,18 @@ public class SimpleReadWriteLock {
 	/** The thread that holds the write lock. */
 	private Thread activeWriter;
 
+	/** The number of writers waiting for the write lock. */
+	private int waitingWriters;
+
+	/** The number of readers waiting for the read lock. */
+	private int waitingReaders;
+
+	/** Records lock statistics by caller, or {@code null} if not profiling. */
+	private final LockProfiler profiler;
+
+	/** The number of read locks held by the current thread. */
+	private final ThreadLocal<int[]> holds;
+
 	/**
 	 * The lock object used for synchronized access of readers and writers. For
 	 * security reasons, a separate private final lock object is used.
@@ -52,6 +72,20 @@ public class SimpleReadWriteLock {
 	 * Initializes a new simple read/write lock.
 	 */
 	public SimpleReadWriteLock() 
+	{
+		this(false);
+	}
+
+	/**
+	 * Initializes a new simple read/write lock, optionally recording lock
+	 * statistics for named callers.
+	 *
+	 * @param profile whether to record lock statistics
+	 *
+	 * @see #readLock(String)
+	 * @see #writeLock(String)
+	 */
+	public SimpleReadWriteLock(boolean profile) 
 	{
 		readerLock = new SimpleReadLock();
 		writerLock = new SimpleWriteLock();
@@ -62,6 +96,10 @@ public class SimpleReadWriteLock {
 		writers = 0;
 		
 		activeWriter = null;
+		waitingWriters = 0;
+		waitingReaders = 0;
+		profiler = profile ? new LockProfiler() : null;
+		holds = ThreadLocal.withInitial(() -> new int[1]);
 	}
 
 	/**
@@ -84,6 +122,53 @@ public class SimpleReadWriteLock {
 		return writerLock;
 	}
 
+	/**
+	 * Returns the reader lock for the named caller. If profiling is enabled, the
+	 * returned lock records its statistics under that name.
+	 *
+	 * @param caller the name of the caller, like the method using the lock
+	 * @return the reader lock
+	 */
+	public SimpleLock readLock(String caller) 
+	{
+		return profiler == null ? readerLock : profiler.profile(readerLock, caller, false, this::waitingReaders);
+	}
+
+	/**
+	 * Returns the writer lock for the named caller. If profiling is enabled, the
+	 * returned lock records its statistics under that name.
+	 *
+	 * @param caller the name of the caller, like the method using the lock
+	 * @return the writer lock
+	 */
+	public SimpleLock writeLock(String caller) 
+	{
+		return profiler == null ? writerLock : profiler.profile(writerLock, caller, true, this::waitingWriters);
+	}
+
+	/**
+	 * Returns the profiler recording lock statistics.
+	 *
+	 * @return the profiler, or {@code null} if profiling is not enabled
+	 */
+	public LockProfiler profiler() 
+	{
+		return profiler;
+	}
+
+	/**
+	 * Returns the number of threads waiting for either lock.
+	 *
+	 * @return the number of waiting readers and writers
+	 */
+	public int waiters() 
+	{
+		synchronized (lock) 
+		{
+			return waitingReaders + waitingWriters;
+		}
+	}
+
 	/**
 	 * Returns the number of active readers.
 	 *
@@ -110,6 +195,32 @@ public class SimpleReadWriteLock {
 		}
 	}
 
+	/**
+	 * Returns the number of readers waiting for the read lock.
+	 *
+	 * @return the number of waiting readers
+	 */
+	public int waitingReaders() 
+	{
+		synchronized (lock) 
+		{
+			return waitingReaders;
+		}
+	}
+
+	/**
+	 * Returns the number of writers waiting for the write lock.
+	 *
+	 * @return the number of waiting writers
+	 */
+	public int waitingWriters() 
+	{
+		synchronized (lock) 
+		{
+			return waitingWriters;
+		}
+	}
+
 	/**
 	 * Determines whether the thread running this code and the writer thread are in
 	 * fact the same thread.
@@ -132,18 +243,22 @@ public class SimpleReadWriteLock {
 	 */
 	private class SimpleReadLock implements SimpleLock {
 		/**
-		 * If the active thread already holds the write lock, allows it to continue.
-		 * Otherwise, if there are active writers, then the thread is forced to wait
-		 * until there are no active writers left. Once safe, allows the thread to
-		 * acquire a read lock by incrementing the number of active readers.
+		 * If the active thread already holds the write lock or a read lock, allows
+		 * it to continue. Otherwise, if there are active or waiting writers, then
+		 * the thread is forced to wait until there are none left. Once safe, allows
+		 * the thread to acquire a read lock by incrementing the number of active
+		 * readers.
 		 */
 		@Override
 		public void lock() 
 		{
+			int[] held = holds.get();
+
 			synchronized (lock) 
 			{
-				while (writers > 0 && !isActiveWriter()) 
+				while ((writers > 0 || waitingWriters > 0) && held[0] == 0 && !isActiveWriter()) 
 				{
+					waitingReaders++;
 					try 
 					{
 						lock.wait();
@@ -152,8 +267,13 @@ public class SimpleReadWriteLock {
 					{
 						Thread.currentThread().interrupt();
 					}
+					finally 
+					{
+						waitingReaders--;
+					}
 				}
 				readers++;
+				held[0]++;
 			}
 		}
 
@@ -174,8 +294,11 @@ public class SimpleReadWriteLock {
 				}
 				else
 				{
+					int[] held = holds.get();
+					held[0] = Math.max(held[0] - 1, 0);
+
 					readers--;
-					if (readers == 0)
+					if (readers == 0 && waitingWriters > 0)
 					{
 						lock.notifyAll();
 					}
@@ -191,16 +314,25 @@ public class SimpleReadWriteLock {
 		/**
 		 * If the active thread already holds the write lock, allows it to continue.
 		 * Otherwise, if there are active readers or writers, then the thread is
-		 * forced to wait until there are no active readers or writers left. Once
-		 * safe, allows the thread to acquire a write lock by setting the active
-		 * writer reference and incrementing the number of active writers.
+		 * forced to wait until there are no active readers or writers left. While
+		 * waiting, new readers are held back. Once safe, allows the thread to
+		 * acquire a write lock by setting the active writer reference and
+		 * incrementing the number of active writers.
 		 */
 		@Override
 		public void lock() 
 		{
 			synchronized (lock)
 			{
-				while ((writers > 0 || readers > 0) && !isActiveWriter())
+				if (isActiveWriter())
+				{
+					writers++;
+					return;
+				}
+
+				waitingWriters++;
+
+				while (writers > 0 || readers > 0)
 				{
 					try
 					{
@@ -211,6 +343,8 @@ public class SimpleReadWriteLock {
 						Thread.currentThread().interrupt();
 					}
 				}
+
+				waitingWriters--;
 				activeWriter = Thread.currentThread();
 				writers++;
 			}
@@ -0,0 +1,524 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A generated website served by an embedded Jetty server, used to load test
+ * the crawler and fetchers offline and repeatably. The site has a fixed number
+ * of html pages, each with a fixed amount of text and number of links. Some
+ * links lead through a chain of redirects, and some lead to content that is
+ * not html. Every response can be delayed to mimic a slow server, and content
+ * can be compressed.
+ *
+ * Pages are generated from a seed rather than stored, so the same options
+ * always produce the same site. Page {@code n} always links to page
+ * {@code n + 1}, so every page can be reached from the first.
+ *
+ * Run as a program, the site is started and crawled from its first page, and
+ * then the pages and bytes crawled per second are reported. With the
+ * {@code -serve} flag, the site is served until stopped instead, so it can be
+ * crawled by {@link Driver}. The options are:
+ *
+ * <pre>
+ * -pages [n]     the number of html pages (default 1000)
+ * -fanout [n]    the number of links on each page (default 10)
+ * -size [bytes]  the size of the text of each page (default 4096)
+ * -redirects [n] the length of each redirect chain (default 2)
+ * -redirected [percent] the percent of links that redirect (default 10)
+ * -binary [percent] the percent of links to non-html content (default 5)
+ * -latency [ms]  the delay before each response (default 0)
+ * -seed [n]      the seed used to generate the site (default 212)
+ * -gzip          compresses responses
+ * -port [port]   the port to serve on (default any free port)
+ * -serve         serves the site until stopped instead of crawling it
+ * -threads [n] -max [n] -perhost [n] -async -stats [path]
+ *                how to crawl the site and where to write the report
+ * </pre>
+ *
+ * @see WebCrawler
+ *
+ * @author heidishimek
+ *
+ */
+public class SyntheticSite
+{
+	/** The default number of html pages. */
+	public static final int PAGES = 1000;
+
+	/** The default number of links on each page. */
+	public static final int FANOUT = 10;
+
+	/** The default size of the text of each page, in bytes. */
+	public static final int PAGE_BYTES = 4096;
+
+	/** The default length of each redirect chain. */
+	public static final int REDIRECTS = 2;
+
+	/** The default percent of links that lead through a redirect chain. */
+	public static final int REDIRECTED = 10;
+
+	/** The default percent of links that lead to content that is not html. */
+	public static final int BINARY = 5;
+
+	/** The default seed used to generate the site. */
+	public static final long SEED = 212;
+
+	/** The words the text of each page is made of. */
+	private static final String[] WORDS = {
+			"search", "engine", "index", "inverted", "query", "crawler", "crawling", "pages",
+			"links", "fetch", "socket", "server", "thread", "threads", "queue", "working",
+			"stemmed", "words", "position", "location", "result", "results", "score", "partial",
+			"exact", "match", "matching", "network", "latency", "bytes", "compressed", "cache",
+			"redirect", "host", "hosts", "html", "text", "parse", "parser", "parsing",
+			"lock", "locks", "reader", "writer", "batch", "merge", "merged", "frontier"
+	};
+
+	/** The number of html pages. */
+	private final int pages;
+
+	/** The number of links on each page. */
+	private final int fanout;
+
+	/** The size of the text of each page, in bytes. */
+	private final int pageBytes;
+
+	/** The length of each redirect chain. */
+	private final int redirects;
+
+	/** The percent of links that lead through a redirect chain. */
+	private final int redirected;
+
+	/** The percent of links that lead to content that is not html. */
+	private final int binary;
+
+	/** The delay before each response, in milliseconds. */
+	private final long latency;
+
+	/** Whether responses are compressed. */
+	private final boolean gzip;
+
+	/** The seed used to generate the site. */
+	private final long seed;
+
+	/** The number of html pages served. */
+	private final LongAdder servedPages;
+
+	/** The number of redirects served. */
+	private final LongAdder servedRedirects;
+
+	/** The number of responses that were not html. */
+	private final LongAdder servedBinary;
+
+	/** The number of requests for urls that do not exist. */
+	private final LongAdder servedMissing;
+
+	/** The number of content bytes served, before any compression. */
+	private final LongAdder servedBytes;
+
+	/**
+	 * Initializes a site with the default options.
+	 */
+	public SyntheticSite()
+	{
+		this(PAGES, FANOUT, PAGE_BYTES, REDIRECTS, REDIRECTED, BINARY, Duration.ZERO, false, SEED);
+	}
+
+	/**
+	 * Initializes a site.
+	 *
+	 * @param pages the number of html pages
+	 * @param fanout the number of links on each page
+	 * @param pageBytes the size of the text of each page, in bytes
+	 * @param redirects the length of each redirect chain
+	 * @param redirected the percent of links that lead through a redirect chain
+	 * @param binary the percent of links that lead to content that is not html
+	 * @param latency the delay before each response
+	 * @param gzip whether responses are compressed
+	 * @param seed the seed used to generate the site
+	 */
+	public SyntheticSite(int pages, int fanout, int pageBytes, int redirects, int redirected, int binary, Duration latency, boolean gzip, long seed)
+	{
+		this.pages = Math.max(pages, 1);
+		this.fanout = Math.max(fanout, 1);
+		this.pageBytes = Math.max(pageBytes, 0);
+		this.redirects = Math.max(redirects, 1);
+		this.redirected = Math.max(Math.min(redirected, 100), 0);
+		this.binary = Math.max(Math.min(binary, 100 - this.redirected), 0);
+		this.latency = Math.max(latency.toMillis(), 0);
+		this.gzip = gzip;
+		this.seed = seed;
+		this.servedPages = new LongAdder();
+		this.servedRedirects = new LongAdder();
+		this.servedBinary = new LongAdder();
+		this.servedMissing = new LongAdder();
+		this.servedBytes = new LongAdder();
+	}
+
+	/**
+	 * Starts serving the site on the local host.
+	 *
+	 * @param port the port to serve on, or 0 for any free port
+	 * @return the started server
+	 * @throws Exception if unable to start the server
+	 */
+	public Server start(int port) throws Exception
+	{
+		Server server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		connector.setHost("127.0.0.1");
+		connector.setPort(port);
+		server.addConnector(connector);
+
+		ServletContextHandler context = new ServletContextHandler();
+		context.addServlet(new ServletHolder(new SiteServlet()), "/*");
+
+		if (gzip)
+		{
+			GzipHandler compressor = new GzipHandler();
+			compressor.setHandler(context);
+			server.setHandler(compressor);
+		}
+		else
+		{
+			server.setHandler(context);
+		}
+
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Returns the url of the first page of the site.
+	 *
+	 * @param server the server the site was started on
+	 * @return the url of the first page
+	 * @throws MalformedURLException if the url is invalid
+	 */
+	public static URL seed(Server server) throws MalformedURLException
+	{
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		return URI.create("http://127.0.0.1:" + port + "/page/0.html").toURL();
+	}
+
+	/**
+	 * Generates the html of a page.
+	 *
+	 * @param page the page number
+	 * @return the html of the page
+	 */
+	public String page(int page)
+	{
+		SplittableRandom random = new SplittableRandom(seed * 1_000_003 + page);
+		StringBuilder html = new StringBuilder(pageBytes + fanout * 48 + 128);
+
+		html.append("<!DOCTYPE html>\n<html>\n<head><title>Page ").append(page).append("</title></head>\n<body>\n");
+		html.append("<p><a href=\"/page/").append((page + 1) % pages).append(".html\">next</a></p>\n<p>");
+
+		int start = html.length();
+
+		while (html.length() - start < pageBytes)
+		{
+			html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+
+		html.append("</p>\n<ul>\n");
+
+		for (int i = 1; i < fanout; i++)
+		{
+			int target = random.nextInt(pages);
+			int kind = random.nextInt(100);
+			String href;
+
+			if (kind < redirected)
+			{
+				href = "/redirect/" + redirects + "/" + target;
+			}
+			else if (kind < redirected + binary)
+			{
+				href = "/file/" + target + ".bin";
+			}
+			else
+			{
+				href = "/page/" + target + ".html";
+			}
+
+			html.append("<li><a href=\"").append(href).append("\">link ").append(i).append("</a></li>\n");
+		}
+
+		html.append("</ul>\n</body>\n</html>\n");
+		return html.toString();
+	}
+
+	/**
+	 * Returns a summary of what was served, suitable for writing as JSON.
+	 *
+	 * @return the statistics of the site
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats()
+	{
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("pages", servedPages.sum());
+		stats.put("redirects", servedRedirects.sum());
+		stats.put("binary", servedBinary.sum());
+		stats.put("missing", servedMissing.sum());
+		stats.put("bytes", servedBytes.sum());
+		return stats;
+	}
+
+	/**
+	 * Serves the pages, redirects and other content of the site.
+	 */
+	private class SiteServlet extends HttpServlet
+	{
+		/** Unused */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Initializes a servlet for the pages of the site.
+		 */
+		public SiteServlet()
+		{
+			super();
+		}
+
+		@Override
+		protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException
+		{
+			if (latency > 0)
+			{
+				try
+				{
+					Thread.sleep(latency);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			String[] parts = request.getRequestURI().split("/");
+
+			try
+			{
+				if (parts.length == 3 && parts[1].equals("page") && parts[2].endsWith(".html"))
+				{
+					int page = number(parts[2].substring(0, parts[2].length() - ".html".length()));
+					servedPages.increment();
+					write(response, "text/html; charset=utf-8", page(page).getBytes(StandardCharsets.UTF_8));
+				}
+				else if (parts.length == 4 && parts[1].equals("redirect"))
+				{
+					int hops = Integer.parseInt(parts[2]);
+					int page = number(parts[3]);
+					servedRedirects.increment();
+					response.setStatus(HttpServletResponse.SC_MOVED_PERMANENTLY);
+					response.setHeader("Location", hops > 1 ? "/redirect/" + (hops - 1) + "/" + page : "/page/" + page + ".html");
+				}
+				else if (parts.length == 3 && parts[1].equals("file") && parts[2].endsWith(".bin"))
+				{
+					int page = number(parts[2].substring(0, parts[2].length() - ".bin".length()));
+					byte[] content = new byte[pageBytes];
+					new SplittableRandom(seed + page).nextBytes(content);
+					servedBinary.increment();
+					write(response, "application/octet-stream", content);
+				}
+				else
+				{
+					missing(response);
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				missing(response);
+			}
+		}
+
+		/**
+		 * Parses a page number.
+		 *
+		 * @param text the text to parse
+		 * @return the page number
+		 * @throws NumberFormatException if the text is not a page of the site
+		 */
+		private int number(String text)
+		{
+			int page = Integer.parseInt(text);
+
+			if (page < 0 || page >= pages)
+			{
+				throw new NumberFormatException("No such page: " + text);
+			}
+
+			return page;
+		}
+
+		/**
+		 * Writes the content of a response.
+		 *
+		 * @param response the response
+		 * @param type the content type
+		 * @param content the content
+		 * @throws IOException if unable to write the response
+		 */
+		private void write(HttpServletResponse response, String type, byte[] content) throws IOException
+		{
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(type);
+
+			if (!gzip)
+			{
+				response.setContentLength(content.length);
+			}
+
+			response.getOutputStream().write(content);
+			servedBytes.add(content.length);
+		}
+
+		/**
+		 * Responds that the url does not exist.
+		 *
+		 * @param response the response
+		 * @throws IOException if unable to write the response
+		 */
+		private void missing(HttpServletResponse response) throws IOException
+		{
+			servedMissing.increment();
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	/**
+	 * Starts the site and then crawls it, or serves it until stopped.
+	 *
+	 * @param args flag/value pairs used to configure the site and crawl
+	 */
+	public static void main(String[] args)
+	{
+		ArgumentMap argMap = new ArgumentMap(args);
+
+		int pages = argMap.getInteger("-pages", PAGES);
+		SyntheticSite site = new SyntheticSite(
+				pages,
+				argMap.getInteger("-fanout", FANOUT),
+				argMap.getInteger("-size", PAGE_BYTES),
+				argMap.getInteger("-redirects", REDIRECTS),
+				argMap.getInteger("-redirected", REDIRECTED),
+				argMap.getInteger("-binary", BINARY),
+				Duration.ofMillis(argMap.getInteger("-latency", 0)),
+				argMap.hasFlag("-gzip"),
+				argMap.getInteger("-seed", (int) SEED));
+
+		Server server;
+
+		try
+		{
+			server = site.start(argMap.getInteger("-port", 0));
+		}
+		catch (Exception e)
+		{
+			System.out.println("Unable to start the synthetic site: " + e.getMessage());
+			return;
+		}
+
+		try
+		{
+			URL seed = seed(server);
+
+			if (argMap.hasFlag("-serve"))
+			{
+				System.out.println("Serving the synthetic site at " + seed);
+				server.join();
+				return;
+			}
+
+			int threads = Math.max(argMap.getInteger("-threads", WorkQueue.DEFAULT), 1);
+			boolean async = argMap.hasFlag("-async");
+			int perHost = argMap.getInteger("-perhost", HostScheduler.MAX_PER_HOST);
+
+			WorkQueue workQueue = new WorkQueue(threads);
+			ThreadSafeInvertedIndex index = new ThreadSafeInvertedIndex();
+			HostScheduler scheduler = new HostScheduler(Duration.ZERO, perHost, async ? Integer.MAX_VALUE : threads);
+			WebCrawler crawler = new WebCrawler.Builder(index, workQueue)
+					.max(argMap.getInteger("-max", pages))
+					.async(async)
+					.scheduler(scheduler)
+					.build();
+
+			long start = System.nanoTime();
+			crawler.crawl(seed);
+			double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+			workQueue.shutdown();
+			HttpsFetcher.pool().closeIdle();
+
+			Map<String, Object> served = site.stats();
+			Map<String, Object> report = new LinkedHashMap<>();
+			report.put("seconds", Math.round(seconds * 1000) / 1000.0);
+			report.put("pagesPerSecond", Math.round(((Long) served.get("pages")) / seconds * 10) / 10.0);
+			report.put("bytesPerSecond", Math.round(((Long) served.get("bytes")) / seconds));
+			report.put("threads", threads);
+			report.put("async", async);
+			report.put("served", served);
+			report.put("received", HttpsFetcher.byteStats());
+			report.put("hostScheduler", scheduler.stats());
+
+			StringWriter json = new StringWriter();
+			SimpleJsonWriter.asJson(report, json, 0);
+			System.out.println(json);
+
+			if (argMap.hasFlag("-stats"))
+			{
+				Path output = argMap.getPath("-stats", Path.of("synthetic.json"));
+
+				try
+				{
+					SimpleJsonWriter.asJson(report, output);
+				}
+				catch (IOException e)
+				{
+					System.out.println("Unable to write the synthetic site report to " + output);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e)
+		{
+			System.out.println("Unable to report on the synthetic site crawl: " + e.getMessage());
+		}
+		finally
+		{
+			try
+			{
+				server.stop();
+			}
+			catch (Exception e)
+			{
+				System.out.println("Unable to stop the synthetic site: " + e.getMessage());
+			}
+		}
+	}
+}
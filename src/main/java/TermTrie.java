@@ -0,0 +1,457 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Suggests the words of an index that start with a prefix, most common first,
+ * without searching the index. Built for suggestions as each key is typed:
+ * a lookup only walks down the trie along the prefix and copies out a list
+ * that was ranked ahead of time, so it never scores or even visits the
+ * locations of any word.
+ *
+ * The trie is a compressed (radix) trie over the sorted words, stored in a few
+ * flat arrays rather than node objects. Each node covers the range of words
+ * that start with its prefix, and keeps the top {@link #TOP_N} of those words
+ * by the number of locations they appear in (ties in alphabetical order).
+ *
+ * A trie is a snapshot of the words in an index when it was built; it does not
+ * change as the index does.
+ *
+ * @see InvertedIndex#partialSearch(java.util.Collection)
+ *
+ * @author heidishimek
+ *
+ */
+public class TermTrie
+{
+	/** The most suggestions kept for each prefix. */
+	public static final int TOP_N = 10;
+
+	/** The words, in sorted order. */
+	private final String[] words;
+
+	/** The number of locations of each word. */
+	private final int[] frequency;
+
+	/** The length of the prefix each node ends at. */
+	private final int[] depth;
+
+	/** The first word under each node. */
+	private final int[] first;
+
+	/** The first child of each node; children are stored next to each other. */
+	private final int[] childStart;
+
+	/** The number of children of each node. */
+	private final int[] childCount;
+
+	/** Where the top words of each node start in {@link #top}. */
+	private final int[] topStart;
+
+	/** The top words of every node, as word numbers, one node after another. */
+	private final int[] top;
+
+	/** The number of nodes. */
+	private final int nodes;
+
+	/**
+	 * Builds a trie from sorted words.
+	 *
+	 * @param words the words, in sorted order and without duplicates
+	 * @param frequency the number of locations of each word
+	 */
+	public TermTrie(String[] words, int[] frequency)
+	{
+		Builder builder = new Builder(words, frequency);
+		this.words = words;
+		this.frequency = frequency;
+		this.nodes = builder.nodes;
+		this.depth = Arrays.copyOf(builder.depth, nodes);
+		this.first = Arrays.copyOf(builder.first, nodes);
+		this.childStart = Arrays.copyOf(builder.childStart, nodes);
+		this.childCount = Arrays.copyOf(builder.childCount, nodes);
+		this.topStart = Arrays.copyOf(builder.topStart, nodes + 1);
+		this.top = Arrays.copyOf(builder.top, builder.topSize);
+	}
+
+	/**
+	 * Builds a trie of the words in an index.
+	 *
+	 * @param index the index
+	 * @return the trie
+	 */
+	public static TermTrie of(InvertedIndex index)
+	{
+		// read a single snapshot so the words and their locations agree
+		InvertedIndex source = index instanceof ThreadSafeInvertedIndex safe ? safe.snapshot() : index;
+		String[] words = source.getWords().toArray(String[]::new);
+		int[] frequency = new int[words.length];
+
+		for (int i = 0; i < words.length; i++)
+		{
+			frequency[i] = source.locationSize(words[i]);
+		}
+
+		return new TermTrie(words, frequency);
+	}
+
+	/**
+	 * Returns the number of words in the trie.
+	 *
+	 * @return the number of words
+	 */
+	public int size()
+	{
+		return words.length;
+	}
+
+	/**
+	 * Returns the most common words that start with the prefix, most common
+	 * first.
+	 *
+	 * @param prefix the prefix, which should be cleaned the same way as the
+	 *   words of the index
+	 * @param n the most words to return, at most {@link #TOP_N}
+	 * @return the words
+	 */
+	public List<String> suggest(String prefix, int n)
+	{
+		List<String> suggestions = new ArrayList<>();
+		int node = find(prefix);
+
+		if (node >= 0)
+		{
+			for (int i = topStart[node]; i < topStart[node + 1] && suggestions.size() < n; i++)
+			{
+				suggestions.add(words[top[i]]);
+			}
+		}
+
+		return suggestions;
+	}
+
+	/**
+	 * Returns the number of locations a word in the trie appears in.
+	 *
+	 * @param word the word
+	 * @return the number of locations, or 0 if the word is not in the trie
+	 */
+	public int frequency(String word)
+	{
+		int i = Arrays.binarySearch(words, word);
+		return i < 0 ? 0 : frequency[i];
+	}
+
+	/**
+	 * Finds the highest node whose words all start with the prefix.
+	 *
+	 * @param prefix the prefix
+	 * @return the node, or -1 if no word starts with the prefix
+	 */
+	private int find(String prefix)
+	{
+		if (nodes == 0)
+		{
+			return -1;
+		}
+
+		int node = 0;
+		int matched = 0;
+
+		while (true)
+		{
+			String label = words[first[node]];
+			int end = Math.min(prefix.length(), depth[node]);
+
+			// every word under the node shares the label up to its depth
+			if (!prefix.regionMatches(matched, label, matched, end - matched))
+			{
+				return -1;
+			}
+
+			if (prefix.length() <= depth[node])
+			{
+				return node;
+			}
+
+			node = child(node, prefix.charAt(depth[node]));
+
+			if (node < 0)
+			{
+				return -1;
+			}
+
+			matched = end;
+		}
+	}
+
+	/**
+	 * Finds the child of a node whose words continue with a character.
+	 *
+	 * @param node the parent node
+	 * @param next the next character
+	 * @return the child, or -1 if there is none
+	 */
+	private int child(int node, char next)
+	{
+		int low = childStart[node];
+		int high = low + childCount[node] - 1;
+		int at = depth[node];
+
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			String word = words[first[middle]];
+			char c = word.length() > at ? word.charAt(at) : 0;
+
+			if (c < next)
+			{
+				low = middle + 1;
+			}
+			else if (c > next)
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d words in %d nodes", words.length, nodes);
+	}
+
+	/**
+	 * Lays out the nodes of a trie breadth first, so the children of each node
+	 * are next to each other, and then ranks the top words of each node from
+	 * the deepest nodes up.
+	 */
+	private static class Builder
+	{
+		/** The words, in sorted order. */
+		private final String[] words;
+
+		/** The number of locations of each word. */
+		private final int[] frequency;
+
+		/** The length of the prefix each node ends at. */
+		private int[] depth;
+
+		/** The first word under each node. */
+		private int[] first;
+
+		/** The word after the last word under each node. */
+		private int[] last;
+
+		/** The first child of each node. */
+		private int[] childStart;
+
+		/** The number of children of each node. */
+		private int[] childCount;
+
+		/** Where the top words of each node start. */
+		private int[] topStart;
+
+		/** The top words of every node. */
+		private int[] top;
+
+		/** The number of nodes. */
+		private int nodes;
+
+		/** The number of top words of every node. */
+		private int topSize;
+
+		/**
+		 * Builds the nodes of a trie.
+		 *
+		 * @param words the words, in sorted order and without duplicates
+		 * @param frequency the number of locations of each word
+		 */
+		private Builder(String[] words, int[] frequency)
+		{
+			this.words = words;
+			this.frequency = frequency;
+
+			int capacity = Math.max(2 * words.length, 1);
+			this.depth = new int[capacity];
+			this.first = new int[capacity];
+			this.last = new int[capacity];
+			this.childStart = new int[capacity];
+			this.childCount = new int[capacity];
+			this.nodes = 0;
+
+			if (words.length > 0)
+			{
+				layout();
+				rank();
+			}
+			else
+			{
+				this.topStart = new int[1];
+				this.top = new int[0];
+			}
+		}
+
+		/**
+		 * Adds a node for a range of words that share a prefix of at least the
+		 * given length, extending the prefix as far as all of them share it.
+		 *
+		 * @param from the first word
+		 * @param to the word after the last word
+		 * @param shared the length of prefix known to be shared
+		 * @return the node
+		 */
+		private int add(int from, int to, int shared)
+		{
+			// sorted, so the first and last words share the least
+			String low = words[from];
+			String high = words[to - 1];
+			int end = shared;
+
+			while (from + 1 < to && end < low.length() && end < high.length() && low.charAt(end) == high.charAt(end))
+			{
+				end++;
+			}
+
+			if (from + 1 == to)
+			{
+				end = low.length();
+			}
+
+			if (nodes == depth.length)
+			{
+				grow();
+			}
+
+			depth[nodes] = end;
+			first[nodes] = from;
+			last[nodes] = to;
+			return nodes++;
+		}
+
+		/**
+		 * Doubles the space for nodes.
+		 */
+		private void grow()
+		{
+			int capacity = depth.length * 2;
+			depth = Arrays.copyOf(depth, capacity);
+			first = Arrays.copyOf(first, capacity);
+			last = Arrays.copyOf(last, capacity);
+			childStart = Arrays.copyOf(childStart, capacity);
+			childCount = Arrays.copyOf(childCount, capacity);
+		}
+
+		/**
+		 * Adds every node, breadth first. A word that ends exactly at a node is
+		 * the first word of the node, and is kept by the node itself rather than
+		 * a child.
+		 */
+		private void layout()
+		{
+			add(0, words.length, 0);
+
+			for (int node = 0; node < nodes; node++)
+			{
+				int at = depth[node];
+				int from = first[node];
+				int to = last[node];
+
+				if (words[from].length() == at)
+				{
+					from++;
+				}
+
+				childStart[node] = nodes;
+
+				while (from < to)
+				{
+					char c = words[from].charAt(at);
+					int end = from + 1;
+
+					while (end < to && words[end].charAt(at) == c)
+					{
+						end++;
+					}
+
+					add(from, end, at + 1);
+					childCount[node]++;
+					from = end;
+				}
+			}
+		}
+
+		/**
+		 * Ranks the top words of every node. Children come after their parents,
+		 * so going through the nodes backwards ranks every child before its
+		 * parent, and each parent only has to merge the lists of its children.
+		 * The lists are then stored one after another in a single array.
+		 */
+		private void rank()
+		{
+			int[][] ranked = new int[nodes][];
+			int total = 0;
+
+			for (int node = nodes - 1; node >= 0; node--)
+			{
+				long[] candidates = new long[TOP_N * childCount[node] + 1];
+				int count = 0;
+
+				if (words[first[node]].length() == depth[node])
+				{
+					candidates[count++] = key(first[node]);
+				}
+
+				for (int child = childStart[node]; child < childStart[node] + childCount[node]; child++)
+				{
+					for (int word : ranked[child])
+					{
+						candidates[count++] = key(word);
+					}
+				}
+
+				Arrays.sort(candidates, 0, count);
+				ranked[node] = new int[Math.min(count, TOP_N)];
+
+				for (int i = 0; i < ranked[node].length; i++)
+				{
+					ranked[node][i] = (int) candidates[i];
+				}
+
+				total += ranked[node].length;
+			}
+
+			topStart = new int[nodes + 1];
+			top = new int[total];
+			topSize = 0;
+
+			for (int node = 0; node < nodes; node++)
+			{
+				topStart[node] = topSize;
+				System.arraycopy(ranked[node], 0, top, topSize, ranked[node].length);
+				topSize += ranked[node].length;
+			}
+
+			topStart[nodes] = topSize;
+		}
+
+		/**
+		 * Returns a sort key for a word that puts words in more locations first,
+		 * and otherwise keeps them in alphabetical order. The word number is kept
+		 * in the low bits.
+		 *
+		 * @param word the word number
+		 * @return the sort key
+		 */
+		private long key(int word)
+		{
+			return ((long) (Integer.MAX_VALUE - frequency[word]) << 32) | word;
+		}
+	}
+}
@@ -12,8 +12,11 @@ public class ThreadSafeIndexFactory extends IndexFactory
 	/** Inverted Index **/
 	public final ThreadSafeInvertedIndex invertedIndex;
 
-	/** Work Queue **/
-	private final WorkQueue workQueue; 
+	/** Tasks submitted by this factory to the work queue **/
+	private final WorkQueue.TaskGroup tasks; 
+
+	/** Merges files while the index is searched, or null to merge directly **/
+	private final IndexUpdater updater;
 	
 	/**
 	 * Initializes a thread-safe query
@@ -22,23 +25,44 @@ public class ThreadSafeIndexFactory extends IndexFactory
 	 *
 	 */
 	public ThreadSafeIndexFactory(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue) 
+	{
+		this(invertedIndex, workQueue, null);
+	}
+
+	/**
+	 * Initializes a thread-safe query that merges each file through an updater,
+	 * so files can be searched as soon as they are parsed
+	 * @param invertedIndex index
+	 * @param workQueue work queue
+	 * @param updater merges files in the background, or null to merge directly
+	 *
+	 */
+	public ThreadSafeIndexFactory(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue, IndexUpdater updater) 
 	{
 		super(invertedIndex);
 		this.invertedIndex = invertedIndex;
-		this.workQueue = workQueue;
+		this.tasks = workQueue.group();
+		this.updater = updater;
 	}
 	
 	@Override
 	public void parseText(Path inputFile) throws IOException
 	{
-		workQueue.execute(new Task(inputFile));
+		tasks.execute(new Task(inputFile));
 	}
 	
 	@Override
 	public void parseSelector(Path input) throws IOException
 	{
 		super.parseSelector(input);
-		workQueue.finish();
+		tasks.finish();
+
+		if (updater != null)
+		{
+			updater.flush();
+		}
+
+		invertedIndex.publish();
 	}
 	
 	/*
@@ -71,7 +95,15 @@ public class ThreadSafeIndexFactory extends IndexFactory
 			try 
 			{
 				IndexFactory.parseText(path, local);
-				invertedIndex.addAll(local);
+
+				if (updater != null)
+				{
+					updater.replace(path.toString(), local);
+				}
+				else
+				{
+					invertedIndex.addAll(local);
+				}
 			} 
 			catch (IOException e) 
 			{
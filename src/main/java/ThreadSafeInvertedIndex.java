@@ -1,256 +1,428 @@
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Thread Safe Inverted Index
- * 
+ *
+ * Writers add to a mutable generation of the index under the write lock, and
+ * periodically publish an immutable snapshot of it. Readers (searches, JSON
+ * output, and the other getters) never lock; they always use the latest
+ * published snapshot, so queries can be answered while the index is still
+ * being built. Snapshots share the locations and positions of every word that
+ * has not changed since the previous snapshot, but each publish still copies
+ * the map of words and the word counts, so its cost grows with the size of
+ * the index as well as with what was written since the last one. The time
+ * each publish takes is recorded, see {@link #publishStats()}.
+ *
+ * Writes become visible to readers once published, either by
+ * {@link #publish()} or automatically by a writer once
+ * {@link #PUBLISH_INTERVAL} milliseconds have passed since the last publish.
+ * Once the index is large enough that publishing takes a while, writers wait
+ * {@link #PUBLISH_COST_RATIO} times as long as the last publish took instead,
+ * so that publishing never takes up most of the time spent writing.
+ *
  * @author heidishimek
  *
  */
 public class ThreadSafeInvertedIndex extends InvertedIndex
 {
+	/** How often writers publish a new snapshot, in milliseconds. */
+	public static final long PUBLISH_INTERVAL = 250;
+
+	/** How many times as long as the last publish took writers wait for the next. */
+	public static final long PUBLISH_COST_RATIO = 4;
+
 	/** The lock used to protect concurrent access to the underlying set. */
 	private final SimpleReadWriteLock lock;
-	
+
+	/** The latest published snapshot, which is never modified. */
+	private volatile InvertedIndex snapshot;
+
+	/** The locations changed for each word since the last publish. */
+	private final HashMap<String, Set<String>> changed;
+
+	/** When the last snapshot was published, in nanoseconds. */
+	private long published;
+
+	/** How long each publish took while holding the write lock, in nanoseconds. */
+	private final Histogram publishTime;
+
+	/** How long the last publish took, in nanoseconds. */
+	private long publishCost;
+
 	/**
 	 * Initializes a thread-safe Inverted Index
 	 */
 	public ThreadSafeInvertedIndex()
+	{
+		this(false);
+	}
+
+	/**
+	 * Initializes a thread-safe Inverted Index, optionally recording lock
+	 * contention statistics for each method that uses the lock.
+	 *
+	 * @param profile whether to record lock statistics
+	 *
+	 * @see #lockStats()
+	 */
+	public ThreadSafeInvertedIndex(boolean profile)
 	{
 		super();
-		lock = new SimpleReadWriteLock();
+		lock = new SimpleReadWriteLock(profile);
+		snapshot = new InvertedIndex();
+		changed = new HashMap<>();
+		published = System.nanoTime();
+		publishTime = new Histogram();
 	}
-	
-	@Override
-	public void add(String word, String inputFile, Integer counter) throws IOException
+
+	/**
+	 * Returns the lock contention statistics for this index, by method. Only
+	 * the methods that write are recorded, since reads use the published
+	 * snapshot without locking.
+	 *
+	 * @return the lock statistics, or an empty map if not profiling
+	 *
+	 * @see LockProfiler#stats()
+	 */
+	public Map<String, Object> lockStats()
+	{
+		LockProfiler profiler = lock.profiler();
+		return profiler == null ? Collections.emptyMap() : profiler.stats();
+	}
+
+	/**
+	 * Returns how long publishing snapshots took, in milliseconds, along with
+	 * the size of the latest snapshot, suitable for writing as JSON.
+	 *
+	 * @return the publish statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, Path)
+	 */
+	public Map<String, Object> publishStats()
+	{
+		InvertedIndex latest = snapshot;
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("words", latest.wordsSize());
+		stats.put("locations", latest.getLocations().size());
+		stats.put("publishMillis", publishTime.toMap(1_000_000));
+		return stats;
+	}
+
+	/**
+	 * Publishes everything written so far as a new snapshot, so that it becomes
+	 * visible to readers.
+	 */
+	public void publish()
 	{
-		lock.writeLock().lock();
+		lock.writeLock("publish").lock();
 		try
 		{
-			super.add(word, inputFile, counter);
+			publishChanges();
 		}
 		finally
 		{
-			lock.writeLock().unlock();
+			lock.writeLock("publish").unlock();
 		}
 	}
-	
-	@Override
-	public void indexToJson(Path path) throws IOException
+
+	/**
+	 * Returns the latest published snapshot. The snapshot is never modified, so
+	 * it may be read without locking for as long as needed.
+	 *
+	 * @return the latest published snapshot
+	 */
+	public InvertedIndex snapshot()
 	{
-		lock.readLock().lock(); 
-		try
+		return snapshot;
+	}
+
+	/**
+	 * Publishes a new snapshot if anything changed. Must be called while holding
+	 * the write lock.
+	 */
+	private void publishChanges()
+	{
+		if (!changed.isEmpty())
 		{
-			super.indexToJson(path);
+			long start = System.nanoTime();
+			snapshot = snapshot(snapshot, changed);
+			changed.clear();
+			publishCost = System.nanoTime() - start;
+			publishTime.record(publishCost);
 		}
-		finally
+		published = System.nanoTime();
+	}
+
+	/**
+	 * Records the word and location as changed since the last publish. Must be
+	 * called while holding the write lock.
+	 *
+	 * @param word the word that changed
+	 * @param location the location that changed
+	 */
+	private void changed(String word, String location)
+	{
+		changed.computeIfAbsent(word, key -> new HashSet<>()).add(location);
+	}
+
+	/**
+	 * Publishes a new snapshot if enough time has passed since the last one,
+	 * given how long that one took. Must be called while holding the write lock.
+	 */
+	private void publishIfDue()
+	{
+		long interval = Math.max(PUBLISH_INTERVAL * 1_000_000, PUBLISH_COST_RATIO * publishCost);
+
+		if (System.nanoTime() - published >= interval)
 		{
-			lock.readLock().unlock();
+			publishChanges();
 		}
 	}
-	
+
 	@Override
-	public boolean contains(String word)
+	public void add(String word, String inputFile, Integer counter) throws IOException
 	{
-		lock.readLock().lock(); 
+		lock.writeLock("add").lock();
 		try
 		{
-			return super.contains(word);
+			super.add(word, inputFile, counter);
+			changed(word, inputFile);
+			publishIfDue();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("add").unlock();
 		}
 	}
-	
+
 	@Override
-	public boolean contains(String word, String location)
+	public void addAll(List<String> words, String input) throws IOException
 	{
-		lock.readLock().lock(); 
+		lock.writeLock("addAll").lock();
 		try
 		{
-			return super.contains(word, location);
+			super.addAll(words, input);
+
+			for (String word : words)
+			{
+				changed(word, input);
+			}
+
+			publishIfDue();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("addAll").unlock();
 		}
 	}
-	
+
 	@Override
-	public boolean contains(String word, String location, int position)
+	public void addAll(InvertedIndex local)
 	{
-		lock.readLock().lock();
+		lock.writeLock("addAll").lock();
 		try
 		{
-			return super.contains(word, location, position);
+			merge(local);
+			publishIfDue();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("addAll").unlock();
 		}
 	}
-	
+
+	/**
+	 * Adds every local index while holding the write lock only once, which is
+	 * cheaper than adding them one at a time.
+	 *
+	 * @param locals the local indexes to add
+	 */
 	@Override
-	public Set<String> getLocations(String word)
+	public void addAll(Collection<? extends InvertedIndex> locals)
 	{
-		lock.readLock().lock();
+		lock.writeLock("addAll").lock();
 		try
 		{
-			return super.getLocations(word);
+			for (InvertedIndex local : locals)
+			{
+				merge(local);
+			}
+
+			publishIfDue();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("addAll").unlock();
 		}
 	}
-	
+
 	@Override
-	public Set<String> getWords()
+	public void removeLocations(Collection<String> locations)
 	{
-		lock.readLock().lock();
+		lock.writeLock("removeLocations").lock();
 		try
 		{
-			return super.getWords();
+			super.removeLocations(locations, this::changed);
+			publishIfDue();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("removeLocations").unlock();
 		}
 	}
-	
-	@Override
-	public Set<Integer> getPositions(String word, String location)
+
+	/**
+	 * Removes the locations and then adds the local indexes, and publishes the
+	 * result right away. Both happen in one step, so searches see either the
+	 * old words of a location or its new ones, never neither.
+	 *
+	 * @param removed the locations to remove first
+	 * @param locals the local indexes to add
+	 *
+	 * @see #removeLocations(Collection)
+	 * @see #addAll(Collection)
+	 */
+	public void update(Collection<String> removed, Collection<? extends InvertedIndex> locals)
 	{
-		lock.readLock().lock();
+		lock.writeLock("update").lock();
 		try
 		{
-			return super.getPositions(word, location);
+			super.removeLocations(removed, this::changed);
+
+			for (InvertedIndex local : locals)
+			{
+				merge(local);
+			}
+
+			publishChanges();
 		}
 		finally
 		{
-			lock.readLock().unlock();
+			lock.writeLock("update").unlock();
 		}
 	}
-	
-	@Override
-	public int wordsSize()
+
+	/**
+	 * Adds the local index and records everything it changed. Must be called
+	 * while holding the write lock.
+	 *
+	 * @param local the local index to add
+	 */
+	private void merge(InvertedIndex local)
 	{
-		lock.readLock().lock();
-		try
-		{
-			return super.wordsSize();
-		}
-		finally
+		super.addAll(local);
+
+		for (String word : local.getWords())
 		{
-			lock.readLock().unlock();
+			for (String location : local.getLocations(word))
+			{
+				changed(word, location);
+			}
 		}
 	}
-	
+
+	@Override
+	public void indexToJson(Path path) throws IOException
+	{
+		snapshot.indexToJson(path);
+	}
+
+	@Override
+	public boolean contains(String word)
+	{
+		return snapshot.contains(word);
+	}
+
+	@Override
+	public boolean contains(String word, String location)
+	{
+		return snapshot.contains(word, location);
+	}
+
+	@Override
+	public boolean contains(String word, String location, int position)
+	{
+		return snapshot.contains(word, location, position);
+	}
+
+	@Override
+	public Set<String> getLocations(String word)
+	{
+		return snapshot.getLocations(word);
+	}
+
+	@Override
+	public Set<String> getLocations()
+	{
+		return snapshot.getLocations();
+	}
+
+	@Override
+	public Set<String> getWords()
+	{
+		return snapshot.getWords();
+	}
+
+	@Override
+	public Set<Integer> getPositions(String word, String location)
+	{
+		return snapshot.getPositions(word, location);
+	}
+
+	@Override
+	public int wordsSize()
+	{
+		return snapshot.wordsSize();
+	}
+
 	@Override
 	public int locationSize(String word)
 	{
-		lock.readLock().lock();
-		try
-		{
-			return super.locationSize(word);
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+		return snapshot.locationSize(word);
 	}
-	
+
 	@Override
 	public int positionsSize(String word, String location)
 	{
-		lock.readLock().lock();
-		try
-		{
-			return super.positionsSize(word, location);
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+		return snapshot.positionsSize(word, location);
 	}
-	
+
 	@Override
 	public String toString()
 	{
-		return super.toString();
+		return snapshot.toString();
 	}
-	
+
 	@Override
-	public void addAll(List<String> words, String input) throws IOException
+	public Collection<InvertedIndex.QueryResult> exactSearch(Collection<String> queries)
 	{
-		lock.writeLock().lock();
-		try
-		{
-			super.addAll(words, input);
-		}
-		finally
-		{
-			lock.writeLock().unlock();
-		}
+		return snapshot.exactSearch(queries);
 	}
-	
+
 	@Override
-	public Collection<InvertedIndex.QueryResult> exactSearch(Collection<String> queries) 
+	public Collection<InvertedIndex.QueryResult> partialSearch(Collection<String> queries)
 	{
-		lock.readLock().lock();
-		try
-		{
-			return super.exactSearch(queries);
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+		return snapshot.partialSearch(queries);
 	}
-	
+
 	@Override
-	public Collection<InvertedIndex.QueryResult> partialSearch(Collection<String> queries) 
+	public Collection<InvertedIndex.QueryResult> search(Collection<String> query, boolean flag)
 	{
-		lock.readLock().lock();
-		try
-		{
-			return super.partialSearch(queries);
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
+		return snapshot.search(query, flag);
 	}
-	
+
 	@Override
 	public void countJson(Path path) throws IOException
 	{
-		lock.readLock().lock();
-		try
-		{
-			super.countJson(path);
-		}
-		finally
-		{
-			lock.readLock().unlock();
-		}
-	}
-	
-	@Override
-	public void addAll(InvertedIndex local)
-	{
-		lock.writeLock().lock();
-		try
-		{
-			super.addAll(local);
-		}
-		finally
-		{
-			lock.writeLock().unlock();
-		}
+		snapshot.countJson(path);
 	}
-}
\ No newline at end of file
+}
@@ -18,8 +18,8 @@ public class ThreadSafeQueryFactory implements QueryFactoryInterface
 	/** Inverted Index **/
 	private final ThreadSafeInvertedIndex invertedIndex; 
 
-	/** Work Queue **/
-	private final WorkQueue workQueue;
+	/** Tasks submitted by this factory to the work queue **/
+	private final WorkQueue.TaskGroup tasks;
 	
 	/**
 	 * Initializes a thread-safe query
@@ -31,20 +31,20 @@ public class ThreadSafeQueryFactory implements QueryFactoryInterface
 	{
 		this.invertedIndex = invertedIndex;
 		this.query = new TreeMap<>();
-		this.workQueue = workQueue;
+		this.tasks = workQueue.group();
 	}
 	
 	@Override
 	public void parseQuery(Path queries, boolean flag) throws IOException
 	{
 		QueryFactoryInterface.super.parseQuery(queries, flag);
-		workQueue.finish();
+		tasks.finish();
 	}
 	
 	@Override 
 	public void parseQuery(String line, boolean flag)
 	{
-		workQueue.execute(new Task(line, flag));
+		tasks.execute(new Task(line, flag));
 	}
 	
 	@Override
@@ -1,86 +1,770 @@
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-//import java.util.logging.LogManager;
-//import org.apache.commons.text.StringEscapeUtils;
-//import org.apache.commons.text.StringSubstitutor;
-//import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
+ * Multithreaded web crawler that builds an inverted index from a seed URL.
+ * Pages are crawled breadth-first: each page is fetched, its links are added
+ * to the work queue, and its cleaned and stemmed text is added to a local
+ * index. Local indexes are merged into the shared index in batches.
+ *
+ * Pages are normally streamed from the network straight into the local index,
+ * so a page is never held in memory as a whole, and only the first
+ * {@link #MAX_BYTES} bytes (or as configured) of each page are crawled. Pages
+ * may instead be fetched asynchronously, in which case no work queue thread is
+ * used while waiting on the network and many fetches can be in flight at once.
+ *
+ * Either way, every fetch waits for its turn from a {@link HostScheduler}, so
+ * each host sees a bounded number of requests (and rate, if a delay is set)
+ * no matter how much of the crawl it makes up.
+ *
+ * Pages whose text duplicates (or nearly duplicates) a page already crawled
+ * may be skipped, in which case neither their words nor their links are used.
+ *
+ * Pages fetched over sockets may be kept in an {@link HttpCache}, so pages
+ * that have not changed since an earlier crawl reuse the words and links found
+ * then instead of being downloaded and parsed again.
+ *
+ * Urls may be checked against the robots.txt file of their host before they
+ * are fetched. The check happens during the turn of the host, so fetching the
+ * robots.txt file is held to the same per-host limits as any other request,
+ * and disallowed urls are never fetched or counted towards the crawl limit.
+ *
+ * A crawl may also save its progress to a {@link CrawlCheckpoint} as it goes,
+ * and later resume from the pages saved there instead of starting over.
+ *
  * @author heidishimek
  *
  */
-public class WebCrawler 
+public class WebCrawler
 {
+	/** The number of redirects to follow when fetching a page. */
+	public static final int REDIRECTS = 3;
+
+	/** The default maximum number of bytes crawled from each page. */
+	public static final long MAX_BYTES = 10 * 1024 * 1024;
+
+	/** The number of crawled pages to merge into the shared index at once. */
+	public static final int BATCH = 16;
+
+	/** Logger used for this class. */
+	private static final Logger log = LogManager.getLogger();
+
 	/** Inverted Index **/
-	private final ThreadSafeInvertedIndex invertedIndex; 
+	private final ThreadSafeInvertedIndex invertedIndex;
+
+	/** Tasks submitted by this crawler to the work queue **/
+	private final WorkQueue.TaskGroup tasks;
+
+	/** The maximum number of pages to crawl. */
+	private final int max;
+
+	/** The normalized URLs visited (or queued to visit) so far. */
+	private final Set<URL> visited;
+
+	/** Local indexes of crawled pages waiting to be merged. */
+	private final ConcurrentLinkedQueue<InvertedIndex> batch;
+
+	/** The number of local indexes waiting to be merged. */
+	private final AtomicInteger batched;
+
+	/** Whether to fetch pages asynchronously. */
+	private final boolean async;
+
+	/** The maximum number of bytes crawled from each page. */
+	private final long maxBytes;
+
+	/** Decides when each page may be fetched from its host. */
+	private final HostScheduler scheduler;
+
+	/** Where crawled pages are saved, or {@code null} if they are not saved. */
+	private final CrawlCheckpoint checkpoint;
+
+	/** Finds duplicate pages, or {@code null} if duplicates are crawled. */
+	private final DuplicateDetector duplicates;
+
+	/** Pages from earlier crawls, or {@code null} if pages are not cached. */
+	private final HttpCache cache;
+
+	/** The robots.txt rules of each host, or {@code null} to crawl any url. */
+	private final RobotsCache robots;
+
+	/** The number of visited urls disallowed by robots.txt. */
+	private int disallowed;
 
-	/** Work Queue **/
-	private final WorkQueue workQueue;
-	
 	/**
-	 * Logger
+	 * Urls turned away by the crawl limit, which take the place of visited urls
+	 * later found to be disallowed by robots.txt. Only kept when robots.txt is
+	 * checked, and at most as many as the limit.
 	 */
-//	private static Logger log = LogManager.getLogger();
-	
+	private final Queue<URL> waiting;
+
+	/** Merges batches while the index is searched, or {@code null} to merge directly. */
+	private final IndexUpdater updater;
+
 	/**
 	 * Constructor
-	 * 
+	 *
 	 * @param invertedIndex index passed in
 	 * @param workQueue queue
+	 * @param max the maximum number of pages to crawl
+	 */
+	public WebCrawler(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue, int max)
+	{
+		this(new Builder(invertedIndex, workQueue).max(max));
+	}
+
+	/**
+	 * Initializes a crawler with the options of a builder.
+	 *
+	 * @param builder the builder
+	 *
+	 * @see Builder#build()
+	 */
+	private WebCrawler(Builder builder)
+	{
+		this.tasks = builder.workQueue.group();
+		this.invertedIndex = builder.invertedIndex;
+		this.max = builder.max;
+		this.visited = ConcurrentHashMap.newKeySet();
+		this.batch = new ConcurrentLinkedQueue<>();
+		this.batched = new AtomicInteger();
+		this.async = builder.async;
+		this.maxBytes = builder.maxBytes;
+		this.scheduler = builder.scheduler == null ? new HostScheduler() : builder.scheduler;
+		this.checkpoint = builder.checkpoint;
+		this.duplicates = builder.duplicates;
+		this.cache = builder.cache;
+		this.robots = builder.robots;
+		this.disallowed = 0;
+		this.waiting = new ArrayDeque<>();
+		this.updater = builder.updater;
+	}
+
+	/**
+	 * Crawls from the seed URL until there are no more links to follow or the
+	 * maximum number of pages has been reached, and then publishes the results
+	 * to the index. If pages were saved to the checkpoint by an earlier crawl,
+	 * the crawl continues from where that one stopped.
+	 *
+	 * @param seed the url to start crawling from
+	 */
+	public void crawl(URL seed)
+	{
+		try
+		{
+			seed = LinkParser.normalize(seed);
+		}
+		catch (MalformedURLException | URISyntaxException e)
+		{
+			System.out.println("Unable to crawl " + seed);
+			return;
+		}
+
+		if (checkpoint != null)
+		{
+			resume(seed);
+		}
+		else if (visit(seed))
+		{
+			fetch(seed);
+		}
+
+		tasks.finish();
+		merge();
+
+		if (updater != null)
+		{
+			updater.flush();
+		}
+
+		invertedIndex.publish();
+
+		log.debug("Crawled {} pages starting from {}.", visited.size(), seed);
+	}
+
+	/**
+	 * Loads the pages saved to the checkpoint into the index, and then fetches
+	 * every url that was visited but not crawled yet. With nothing saved, this
+	 * starts from the seed.
+	 *
+	 * @param seed the normalized url to start crawling from
+	 */
+	private void resume(URL seed)
+	{
+		Set<URL> crawled = new HashSet<>();
+		Set<URL> found = new LinkedHashSet<>();
+		found.add(seed);
+
+		try
+		{
+			int pages = checkpoint.load(invertedIndex, crawled, found);
+			log.debug("Resumed {} crawled pages from {}.", pages, checkpoint);
+		}
+		catch (IOException e)
+		{
+			System.out.println("Unable to resume the crawl from " + checkpoint);
+		}
+
+		synchronized (visited)
+		{
+			visited.addAll(found);
+		}
+
+		for (URL url : found)
+		{
+			if (!crawled.contains(url))
+			{
+				fetch(url);
+			}
+		}
+	}
+
+	/**
+	 * Fetches the url once it is the turn of its host, and then processes the
+	 * page, either as a task in the work queue or asynchronously.
+	 *
+	 * @param url the url to fetch
+	 */
+	private void fetch(URL url)
+	{
+		CompletableFuture<Void> turn = scheduler.acquire(url);
+
+		if (async)
+		{
+			CompletableFuture<Map<String, List<String>>> response = turn
+					.thenCompose(ready -> robots == null ? CompletableFuture.completedFuture(true)
+							: CompletableFuture.supplyAsync(() -> isAllowed(url), tasks::execute))
+					.thenCompose(allowed -> allowed ? HtmlFetcher.fetchHeadersAsync(url, REDIRECTS) : CompletableFuture.completedFuture(null))
+					.whenComplete((page, error) -> scheduler.release(url));
+
+			tasks.whenComplete(response, headers -> process(url, headers));
+		}
+		else
+		{
+			tasks.whenComplete(turn, ready -> new Task(url).run());
+		}
+	}
+
+	/**
+	 * Processes a page fetched asynchronously: the links and stemmed text are
+	 * found in a single scan of the html.
+	 *
+	 * @param url the url of the page
+	 * @param headers the headers and content of the page, or {@code null} if
+	 *   it could not be fetched
+	 */
+	private void process(URL url, Map<String, List<String>> headers)
+	{
+		String html = headers == null ? null : HtmlFetcher.getHtml(headers);
+
+		if (html == null)
+		{
+			saved(url, List.of(), null);
+			return;
+		}
+
+		InvertedIndex local = new InvertedIndex();
+		PageIndexer page = indexer(url, local);
+		HtmlScanner scanner = new HtmlScanner(page);
+		scanner.scan(html);
+		scanner.close();
+
+		processed(url, page.links(HtmlFetcher.fetchedFrom(url, headers)), local, page.fingerprint());
+	}
+
+	/**
+	 * Creates the parser that indexes a page, which also fingerprints the page
+	 * if duplicates are skipped.
+	 *
+	 * @param url the url of the page
+	 * @param local the local index of the page
+	 * @return the parser
+	 */
+	private PageIndexer indexer(URL url, InvertedIndex local)
+	{
+		return new PageIndexer(url, local, duplicates == null ? null : new DuplicateDetector.Fingerprint());
+	}
+
+	/**
+	 * Finishes processing a page: queues any new links found, and then adds the
+	 * local index of its stemmed text to the current batch. Pages that
+	 * duplicate a page already crawled are dropped instead.
+	 *
+	 * @param url the url of the page
+	 * @param links the links of the page, with relative links resolved against
+	 *   the url the page was redirected to, if any
+	 * @param local the local index of the page
+	 * @param fingerprint the fingerprint of the page, or {@code null} if
+	 *   duplicates are crawled
+	 *
+	 * @see HtmlFetcher#fetchedFrom(URL, Map)
+	 */
+	private void processed(URL url, List<URL> links, InvertedIndex local, DuplicateDetector.Fingerprint fingerprint)
+	{
+		if (duplicates != null && duplicates.isDuplicate(fingerprint))
+		{
+			log.debug("Skipping duplicate page {}.", url);
+			saved(url, List.of(), null);
+			return;
+		}
+
+		List<URL> found = new ArrayList<>();
+
+		for (URL link : links)
+		{
+			if (visit(link))
+			{
+				fetch(link);
+				found.add(link);
+			}
+		}
+
+		// saved before merging, since merging may share the local data
+		saved(url, found, local);
+		batch(local);
+	}
+
+	/**
+	 * Saves a crawled page to the checkpoint, if there is one.
+	 *
+	 * @param url the url of the page
+	 * @param found the links the page added to the crawl
+	 * @param local the local index of the page, or {@code null} if it could
+	 *   not be crawled
+	 */
+	private void saved(URL url, List<URL> found, InvertedIndex local)
+	{
+		if (checkpoint != null)
+		{
+			checkpoint.record(url, found, local);
+		}
+	}
+
+	/**
+	 * Marks the url as visited if it has not been visited yet and the crawl
+	 * limit has not been reached. Urls found to be disallowed by robots.txt do
+	 * not count towards the limit.
+	 *
+	 * @param url the normalized url to visit
+	 * @return true if the url should be crawled
+	 */
+	private boolean visit(URL url)
+	{
+		if (visited.contains(url))
+		{
+			return false;
+		}
+
+		synchronized (visited)
+		{
+			if (visited.size() - disallowed < max)
+			{
+				return visited.add(url);
+			}
+
+			if (robots != null && waiting.size() < max)
+			{
+				waiting.add(url);
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether robots.txt allows the url to be fetched, which may fetch
+	 * the robots.txt file of its host. Only called during the turn of the host.
+	 *
+	 * @param url the normalized url
+	 * @return true if the url may be fetched
 	 */
-	public WebCrawler(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue)
+	private boolean isAllowed(URL url)
 	{
-		this.workQueue = workQueue;
-		this.invertedIndex = invertedIndex;
+		if (robots == null || robots.isAllowed(url))
+		{
+			return true;
+		}
+
+		log.debug("Skipping {}, which robots.txt disallows.", url);
+		URL next;
+
+		synchronized (visited)
+		{
+			disallowed++;
+
+			do
+			{
+				next = waiting.poll();
+			}
+			while (next != null && !visited.add(next));
+		}
+
+		// takes the place the disallowed url had in the crawl
+		if (next != null)
+		{
+			fetch(next);
+		}
+
+		return false;
 	}
-	
+
 	/**
-	 * @param url url 
-	 * @param index index
+	 * Adds the local index of a crawled page to the current batch, and merges
+	 * the batch into the shared index once it is full. Pages are handed to the
+	 * updater right away instead, since it batches them itself.
+	 *
+	 * @param local the local index of a crawled page
 	 */
-	public static void crawl(URL url, ThreadSafeInvertedIndex index)
+	private void batch(InvertedIndex local)
 	{
-//		addUrl(url, index);
-//		workQueue.execute(new Task());
-		
+		if (updater != null)
+		{
+			updater.add(List.of(local));
+			return;
+		}
+
+		batch.add(local);
+
+		if (batched.incrementAndGet() >= BATCH)
+		{
+			merge();
+		}
 	}
-	
+
 	/**
-	 * @param url  link
-	 * @param html html
-	 * 
+	 * Merges every local index waiting in the batch into the shared index, or
+	 * hands them to the updater to merge in the background.
 	 */
-	private static void addUrl(URL url, String html) 
+	private void merge()
 	{
-		String link = url.toString();
-		String[] parsed = TextParser.parse(html);
-		for (String word : parsed)
+		List<InvertedIndex> locals = new ArrayList<>();
+		InvertedIndex local;
+
+		while ((local = batch.poll()) != null)
+		{
+			batched.decrementAndGet();
+			locals.add(local);
+		}
+
+		if (locals.isEmpty())
+		{
+			return;
+		}
+
+		if (updater != null)
+		{
+			updater.add(locals);
+		}
+		else
 		{
-			
+			invertedIndex.addAll(locals);
 		}
-		
 	}
 
 	/**
-	 * The non-static task class that will update the shared paths and pending
-	 * members in our task manager instance.
+	 * The non-static task class that fetches and processes a single page,
+	 * scanning and indexing it as it is read from the network. The task is only
+	 * run once it is the turn of the host, and gives the turn back as soon as
+	 * the page has been read. If the page is cached, it is only read if it
+	 * changed since then, unless the cached copy turns out to be unreadable.
 	 */
-	private class Task implements Runnable 
+	private class Task implements Runnable
 	{
+		/** The url to crawl. */
 		private final URL url;
-		
+
+		/** Whether to only read the page if it changed since it was cached. */
+		private final boolean conditional;
+
 		/**
 		 * Initializes Task
+		 *
+		 * @param url the url to crawl
 		 */
 		public Task(URL url)
+		{
+			this(url, true);
+		}
+
+		/**
+		 * Initializes Task
+		 *
+		 * @param url the url to crawl
+		 * @param conditional whether to only read the page if it changed since
+		 *   it was cached
+		 */
+		public Task(URL url, boolean conditional)
 		{
 			this.url = url;
+			this.conditional = conditional;
 		}
 
 		@Override
-		public void run() 
+		public void run()
+		{
+			InvertedIndex local = new InvertedIndex();
+			PageIndexer page = indexer(url, local);
+			HttpCache.Entry cached = cache == null || !conditional ? null : cache.get(url);
+			Map<String, List<String>> headers = null;
+
+			try (HtmlScanner scanner = new HtmlScanner(page))
+			{
+				if (isAllowed(url))
+				{
+					headers = HtmlFetcher.fetch(url, REDIRECTS, maxBytes, scanner, cached == null ? Map.of() : cached.conditions());
+				}
+			}
+			finally
+			{
+				scheduler.release(url);
+			}
+
+			if (headers != null && HtmlFetcher.isOkHtml(headers))
+			{
+				List<URL> links = page.links(HtmlFetcher.fetchedFrom(url, headers));
+
+				if (cache != null)
+				{
+					cache.put(url, headers, links, local);
+				}
+
+				processed(url, links, local, page.fingerprint());
+			}
+			else if (headers != null && cached != null && HtmlFetcher.getStatusCode(headers) == 304)
+			{
+				notModified(cached);
+			}
+			else
+			{
+				saved(url, List.of(), null);
+			}
+		}
+
+		/**
+		 * Processes a page that has not changed since it was cached, using the
+		 * links and words stored for it. If they cannot be read, the page is
+		 * fetched again in full during another turn of the host.
+		 *
+		 * @param cached the cache entry of the page
+		 */
+		private void notModified(HttpCache.Entry cached)
+		{
+			List<URL> links = new ArrayList<>();
+			InvertedIndex local = new InvertedIndex();
+
+			if (cache.load(cached, links, local))
+			{
+				DuplicateDetector.Fingerprint fingerprint = duplicates == null ? null
+						: DuplicateDetector.Fingerprint.of(local, url.toString());
+
+				processed(url, links, local, fingerprint);
+			}
+			else
+			{
+				log.debug("Fetching {} again, since its cache entry could not be read.", url);
+				tasks.whenComplete(scheduler.acquire(url), ready -> new Task(url, false).run());
+			}
+		}
+	}
+
+	/**
+	 * Configures a crawler. Only the index and work queue are required; every
+	 * other option has a default, and options that are not set are not used.
+	 */
+	public static class Builder
+	{
+		/** The index crawled pages are added to. */
+		private final ThreadSafeInvertedIndex invertedIndex;
+
+		/** The work queue pages are crawled on. */
+		private final WorkQueue workQueue;
+
+		/** The maximum number of pages to crawl. */
+		private int max;
+
+		/** Whether to fetch pages asynchronously. */
+		private boolean async;
+
+		/** The maximum number of bytes crawled from each page. */
+		private long maxBytes;
+
+		/** Decides when each page may be fetched from its host. */
+		private HostScheduler scheduler;
+
+		/** Where crawled pages are saved, or {@code null} if they are not saved. */
+		private CrawlCheckpoint checkpoint;
+
+		/** Finds duplicate pages, or {@code null} if duplicates are crawled. */
+		private DuplicateDetector duplicates;
+
+		/** Pages from earlier crawls, or {@code null} if pages are not cached. */
+		private HttpCache cache;
+
+		/** The robots.txt rules of each host, or {@code null} to crawl any url. */
+		private RobotsCache robots;
+
+		/** Merges batches while the index is searched, or {@code null} to merge directly. */
+		private IndexUpdater updater;
+
+		/**
+		 * Initializes a builder that crawls a single page, synchronously, with
+		 * none of the optional features.
+		 *
+		 * @param invertedIndex the index crawled pages are added to
+		 * @param workQueue the work queue pages are crawled on
+		 */
+		public Builder(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue)
+		{
+			this.invertedIndex = invertedIndex;
+			this.workQueue = workQueue;
+			this.max = 1;
+			this.async = false;
+			this.maxBytes = MAX_BYTES;
+			this.scheduler = null;
+			this.checkpoint = null;
+			this.duplicates = null;
+			this.cache = null;
+			this.robots = null;
+			this.updater = null;
+		}
+
+		/**
+		 * Sets the maximum number of pages to crawl, including any crawled
+		 * before resuming.
+		 *
+		 * @param max the maximum number of pages, at least 1
+		 * @return this builder
+		 */
+		public Builder max(int max)
+		{
+			this.max = Math.max(max, 1);
+			return this;
+		}
+
+		/**
+		 * Sets whether to fetch pages asynchronously.
+		 *
+		 * @param async whether to fetch pages asynchronously
+		 * @return this builder
+		 */
+		public Builder async(boolean async)
+		{
+			this.async = async;
+			return this;
+		}
+
+		/**
+		 * Sets the maximum number of bytes crawled from each page, which only
+		 * applies when pages are not fetched asynchronously.
+		 *
+		 * @param maxBytes the maximum number of bytes, at least 1
+		 * @return this builder
+		 */
+		public Builder maxBytes(long maxBytes)
+		{
+			this.maxBytes = Math.max(maxBytes, 1);
+			return this;
+		}
+
+		/**
+		 * Sets what decides when each page may be fetched from its host.
+		 *
+		 * @param scheduler the scheduler, or {@code null} for the default
+		 * @return this builder
+		 */
+		public Builder scheduler(HostScheduler scheduler)
+		{
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * Sets where crawled pages are saved and resumed from.
+		 *
+		 * @param checkpoint the checkpoint, or {@code null} to not save pages
+		 * @return this builder
+		 */
+		public Builder checkpoint(CrawlCheckpoint checkpoint)
+		{
+			this.checkpoint = checkpoint;
+			return this;
+		}
+
+		/**
+		 * Sets what finds pages to skip because their text was already crawled.
+		 *
+		 * @param duplicates the detector, or {@code null} to crawl every page
+		 * @return this builder
+		 */
+		public Builder duplicates(DuplicateDetector duplicates)
+		{
+			this.duplicates = duplicates;
+			return this;
+		}
+
+		/**
+		 * Sets the pages kept from earlier crawls, which are only used when
+		 * pages are not fetched asynchronously.
+		 *
+		 * @param cache the cache, or {@code null} to not cache pages
+		 * @return this builder
+		 */
+		public Builder cache(HttpCache cache)
+		{
+			this.cache = cache;
+			return this;
+		}
+
+		/**
+		 * Sets the robots.txt rules urls must be allowed by to be crawled.
+		 *
+		 * @param robots the rules, or {@code null} to crawl any url
+		 * @return this builder
+		 */
+		public Builder robots(RobotsCache robots)
+		{
+			this.robots = robots;
+			return this;
+		}
+
+		/**
+		 * Sets what merges batches of crawled pages in the background, so they
+		 * can be searched during the crawl.
+		 *
+		 * @param updater the updater, or {@code null} to merge batches directly
+		 * @return this builder
+		 */
+		public Builder updater(IndexUpdater updater)
+		{
+			this.updater = updater;
+			return this;
+		}
+
+		/**
+		 * Returns a crawler with the options set so far.
+		 *
+		 * @return the crawler
+		 */
+		public WebCrawler build()
 		{
-			
+			return new WebCrawler(this);
 		}
 	}
 }
@@ -1,5 +1,14 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -8,7 +17,29 @@ import org.apache.logging.log4j.Logger;
 /**
  * A simple work queue implementation based on the IBM developerWorks article by
  * Brian Goetz. It is up to the user of this class to keep track of whether
- * there is any pending work remaining.
+ * there is any pending work remaining. Callers that share a work queue can
+ * track their own work with a {@link TaskGroup} or the future returned by
+ * {@link #submit(Runnable)}, instead of waiting on every task with
+ * {@link #finish()}.
+ *
+ * The queue can alternatively run in virtual-thread mode, where every task is
+ * started on its own virtual thread and a semaphore caps how many tasks may
+ * run at once. This suits I/O-bound work (file parsing, socket fetches) where
+ * a fixed pool of platform threads spends most of its time blocked.
+ *
+ * The queue may also be bounded. Once the number of tasks waiting to start
+ * reaches the capacity, {@link #execute(Runnable)} blocks the producer until a
+ * task is started. If the producer is itself one of this queue's workers, the
+ * task is run on the caller instead so that workers never block each other.
+ *
+ * Tasks that have not started when the queue is shut down, or that are added
+ * afterwards, are dropped. A dropped task still counts as finished, so
+ * {@link #finish()} and {@link TaskGroup#finish()} do not wait for it, and the
+ * future returned by {@link #submit(Runnable)} is cancelled.
+ *
+ * Every queue keeps low-overhead statistics (queue depth, how long tasks wait
+ * before starting, how long they run, and how busy each worker is) that can
+ * be read with {@link #stats()} without going through the logger.
  *
  * @see <a href="https://www.ibm.com/developerworks/library/j-jtp0730/">
  * Java Theory and Practice: Thread Pools and Work Queues</a>
@@ -26,7 +57,7 @@ public class WorkQueue
 	private final Worker[] workers;
 
 	/** Queue of pending work requests. */
-	private final LinkedList<Runnable> queue;
+	private final LinkedList<QueuedTask> queue;
 
 	/** Used to signal the queue should be shutdown. */
 	private volatile boolean shutdown;
@@ -39,6 +70,42 @@ public class WorkQueue
 	
 	/** The amount of pending (or unfinished) work. */
 	private int pending;
+
+	/** Whether tasks run on virtual threads instead of the worker pool. */
+	private final boolean virtual;
+
+	/** The maximum number of tasks allowed to run at once. */
+	private final int threads;
+
+	/** Caps the number of running tasks in virtual-thread mode. */
+	private final Semaphore permits;
+
+	/** Creates the virtual threads used in virtual-thread mode. */
+	private final ThreadFactory factory;
+
+	/** The maximum number of tasks waiting to start, or 0 if unbounded. */
+	private final int capacity;
+
+	/** The number of virtual-thread tasks waiting for a permit. */
+	private int waiting;
+
+	/** The number of times a task was added while the queue was full. */
+	private final LongAdder full;
+
+	/** The number of tasks waiting to start, sampled as each task is added. */
+	private final Histogram depth;
+
+	/** How long tasks wait in the queue before starting, in nanoseconds. */
+	private final Histogram waitTime;
+
+	/** How long tasks take to run, in nanoseconds. */
+	private final Histogram runTime;
+
+	/** When this work queue was started, in nanoseconds. */
+	private final long started;
+
+	/** The work queue (if any) whose task is running on the current thread. */
+	private static final ThreadLocal<WorkQueue> owner = new ThreadLocal<>();
 	
 	/**
 	 * Starts a work queue with the default number of threads.
@@ -57,42 +124,246 @@ public class WorkQueue
 	 */
 	public WorkQueue(int threads) 
 	{
-		this.queue = new LinkedList<Runnable>();
-		this.workers = new Worker[threads];
+		this(threads, false);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads. If virtual is
+	 * {@code true}, no worker threads are started; instead each task runs on its
+	 * own virtual thread and at most {@code threads} tasks run at once.
+	 *
+	 * @param threads number of worker threads (or concurrent virtual-thread
+	 *        tasks); should be greater than 1
+	 * @param virtual whether to run tasks on virtual threads
+	 */
+	public WorkQueue(int threads, boolean virtual) 
+	{
+		this(threads, virtual, 0);
+	}
+
+	/**
+	 * Starts a work queue with the specified number of threads and capacity. A
+	 * capacity of 0 (or less) means the queue is unbounded.
+	 *
+	 * @param threads number of worker threads (or concurrent virtual-thread
+	 *        tasks); should be greater than 1
+	 * @param virtual whether to run tasks on virtual threads
+	 * @param capacity maximum number of tasks waiting to start, or 0 if
+	 *        unbounded
+	 *
+	 * @see #WorkQueue(int, boolean)
+	 */
+	public WorkQueue(int threads, boolean virtual, int capacity) 
+	{
+		this.queue = new LinkedList<QueuedTask>();
+		this.workers = new Worker[virtual ? 0 : threads];
+		this.threads = threads;
+		this.virtual = virtual;
+		this.permits = virtual ? new Semaphore(threads) : null;
+		this.factory = virtual ? Thread.ofVirtual().name("VirtualWorker-", 0).factory() : null;
+		this.capacity = Math.max(capacity, 0);
+		this.waiting = 0;
+		this.full = new LongAdder();
+		this.depth = new Histogram();
+		this.waitTime = new Histogram();
+		this.runTime = new Histogram();
+		this.started = System.nanoTime();
 		
 		this.pending = 0;
 
 		shutdown = false;
 
 		// start the threads so they are waiting in the background
-		for (int i = 0; i < threads; i++) 
+		for (int i = 0; i < workers.length; i++) 
 		{
 			workers[i] = new Worker();
 			workers[i].start();
 		}
 		
-		log.debug("Work queue initialized with {} worker threads.", workers.length);
+		log.debug("Work queue initialized with {} {} threads.", threads, virtual ? "virtual" : "worker");
 	}
 
 	/**
 	 * Adds a work request to the queue. A thread will process this request when
-	 * available.
+	 * available. If the queue is bounded and full, blocks until there is room,
+	 * or runs the request immediately if called from one of this queue's own
+	 * tasks.
 	 *
 	 * @param task work request (in the form of a {@link Runnable} object)
 	 */
 	public void execute(Runnable task) 
 	{
 		incrementPending();
+		boolean inline = false;
+		long queued = System.nanoTime();
+
 		synchronized (queue) 
 		{
-			queue.addLast(task);
+			if (capacity > 0 && queued() >= capacity && !shutdown) 
+			{
+				full.increment();
+
+				if (owner.get() == this) 
+				{
+					inline = true;
+				}
+				else 
+				{
+					awaitCapacity();
+				}
+			}
+
+			if (shutdown) 
+			{
+				log.debug("Work queue dropped a task added after shutdown.");
+				drop(task);
+				return;
+			}
+
+			if (!inline && virtual) 
+			{
+				waiting++;
+			}
+			else if (!inline) 
+			{
+				queue.addLast(new QueuedTask(task, queued));
+				queue.notifyAll();
+			}
+
+			depth.record(queued());
+		}
+
+		if (inline) 
+		{
+			runTask(task, queued);
+		}
+		else if (virtual) 
+		{
+			factory.newThread(new VirtualTask(task, queued)).start();
+		}
+	}
+
+	/**
+	 * Returns the number of tasks waiting to start. Must be called while
+	 * synchronized on the queue.
+	 *
+	 * @return number of tasks waiting to start
+	 */
+	private int queued() 
+	{
+		return virtual ? waiting : queue.size();
+	}
+
+	/**
+	 * Waits until there is room in the queue or a shutdown is requested. Must be
+	 * called while synchronized on the queue.
+	 */
+	private void awaitCapacity() 
+	{
+		while (queued() >= capacity && !shutdown) 
+		{
+			try 
+			{
+				queue.wait();
+			}
+			catch (InterruptedException e) 
+			{
+				System.err.println("Warning: Work queue interrupted while waiting for capacity.");
+				log.catching(Level.DEBUG, e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Drops a task that will never run, marking it as no longer pending and
+	 * telling it so if it needs to know.
+	 *
+	 * @param task the task to drop
+	 */
+	private void drop(Runnable task) 
+	{
+		try 
+		{
+			if (task instanceof Droppable) 
+			{
+				((Droppable) task).dropped();
+			}
+		}
+		finally 
+		{
+			decrementPending();
+		}
+	}
+
+	/**
+	 * Called once a task has left the queue to start running. Must be called
+	 * while synchronized on the queue.
+	 */
+	private void dequeued() 
+	{
+		if (capacity > 0) 
+		{
 			queue.notifyAll();
 		}
 	}
 	
+	/**
+	 * Adds a work request to the queue and returns a future that completes when
+	 * the request has run. If the request throws a runtime exception, the future
+	 * completes exceptionally instead, and if the request is dropped by a
+	 * shutdown, the future is cancelled.
+	 *
+	 * @param task work request (in the form of a {@link Runnable} object)
+	 * @return a future that completes once the task has run
+	 */
+	public CompletableFuture<Void> submit(Runnable task) 
+	{
+		CompletableFuture<Void> future = new CompletableFuture<>();
+
+		execute(new Droppable() 
+		{
+			@Override
+			public void run() 
+			{
+				try 
+				{
+					task.run();
+					future.complete(null);
+				}
+				catch (RuntimeException e) 
+				{
+					future.completeExceptionally(e);
+				}
+			}
+
+			@Override
+			public void dropped() 
+			{
+				future.cancel(false);
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Creates a new group of tasks that share this work queue, but can be waited
+	 * on independently of any other work in the queue.
+	 *
+	 * @return a new, empty task group
+	 */
+	public TaskGroup group() 
+	{
+		return new TaskGroup();
+	}
+
 	/**
 	 * Waits for all pending work to be finished. Does not terminate the worker
 	 * threads so that the work queue can continue to be used.
+	 *
+	 * @see TaskGroup#finish()
 	 */
 	public synchronized void finish() 
 	{
@@ -133,16 +404,26 @@ public class WorkQueue
 
 	/**
 	 * Asks the queue to shutdown. Any unprocessed work will not be finished, but
-	 * threads in-progress will not be interrupted.
+	 * threads in-progress will not be interrupted. Work that has not started is
+	 * dropped.
 	 */
 	public void shutdown() 
 	{
-		// safe to do unsynchronized due to volatile keyword
-		shutdown = true;
-
 		log.debug("Work queue triggering shutdown...");
 		synchronized (queue) 
 		{
+			shutdown = true;
+
+			if (!queue.isEmpty()) 
+			{
+				log.debug("Work queue dropping {} tasks that have not started.", queue.size());
+			}
+
+			while (!queue.isEmpty()) 
+			{
+				drop(queue.removeFirst().task);
+			}
+
 			queue.notifyAll();
 		}
 	}
@@ -172,17 +453,371 @@ public class WorkQueue
 			}
 		}
 		
-		log.debug("All worker threads terminated.");
+		log.debug("All worker threads terminated; queue was full {} times.", full.sum());
 	}
 
 	/**
-	 * Returns the number of worker threads being used by the work queue.
+	 * Returns the number of worker threads being used by the work queue. In
+	 * virtual-thread mode, this is the maximum number of tasks run at once.
 	 *
 	 * @return number of worker threads
 	 */
 	public int size() 
 	{
-		return workers.length;
+		return threads;
+	}
+
+	/**
+	 * Returns the maximum number of tasks allowed to wait to start.
+	 *
+	 * @return the capacity, or 0 if this work queue is unbounded
+	 */
+	public int capacity() 
+	{
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of times a task was added while the queue was full,
+	 * whether the producer then blocked or ran the task itself.
+	 *
+	 * @return number of queue-full events
+	 */
+	public long fullCount() 
+	{
+		return full.sum();
+	}
+
+	/**
+	 * Returns whether this work queue runs its tasks on virtual threads.
+	 *
+	 * @return {@code true} if in virtual-thread mode
+	 */
+	public boolean isVirtual() 
+	{
+		return virtual;
+	}
+
+	/**
+	 * Returns a snapshot of the statistics kept by this work queue, suitable for
+	 * writing as JSON. Times are reported in microseconds (or milliseconds for
+	 * per-worker totals), and utilization is the fraction of available thread
+	 * time spent running tasks since the queue started.
+	 *
+	 * @return the work queue statistics
+	 *
+	 * @see SimpleJsonWriter#asJson(Object, java.nio.file.Path)
+	 */
+	public Map<String, Object> stats() 
+	{
+		long uptime = System.nanoTime() - started;
+
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("mode", virtual ? "virtual" : "platform");
+		stats.put("threads", threads);
+		stats.put("capacity", capacity);
+		stats.put("completed", runTime.count());
+		stats.put("queueFull", full.sum());
+		stats.put("uptimeMillis", uptime / 1_000_000);
+		stats.put("utilization", Math.round(1000.0 * runTime.total() / Math.max(uptime * threads, 1)) / 1000.0);
+		stats.put("queueDepth", depth.toMap(1));
+		stats.put("waitMicros", waitTime.toMap(1000));
+		stats.put("runMicros", runTime.toMap(1000));
+
+		List<Map<String, Object>> list = new ArrayList<>();
+
+		for (Worker worker : workers) 
+		{
+			Map<String, Object> summary = new LinkedHashMap<>();
+			summary.put("name", worker.getName());
+			summary.put("tasks", worker.tasks);
+			summary.put("busyMillis", worker.busy / 1_000_000);
+			summary.put("idleMillis", worker.idle / 1_000_000);
+			list.add(summary);
+		}
+
+		stats.put("workers", list);
+		return stats;
+	}
+
+	/**
+	 * Runs a single task, catching runtime exceptions so they do not leak the
+	 * thread, and then marks the task as no longer pending.
+	 *
+	 * @param task the task to run
+	 * @param queued when the task was added to the queue, in nanoseconds
+	 * @return how long the task ran, in nanoseconds
+	 */
+	private long runTask(Runnable task, long queued) 
+	{
+		long start = System.nanoTime();
+		waitTime.record(start - queued);
+
+		try 
+		{
+			task.run();
+		}
+		catch (RuntimeException e) 
+		{
+			// catch runtime exceptions to avoid leaking threads
+			System.err.println("Warning: Work queue encountered an exception while running.");
+			log.catching(Level.DEBUG, e);
+		}
+		finally 
+		{
+			// record before the pending count drops so finished work is counted
+			runTime.record(System.nanoTime() - start);
+			decrementPending();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * A task that needs to know if it is dropped by a shutdown instead of run.
+	 */
+	private interface Droppable extends Runnable 
+	{
+		/**
+		 * Called instead of running the task when it is dropped.
+		 */
+		public void dropped();
+	}
+
+	/**
+	 * A task waiting in the queue, along with when it was added.
+	 */
+	private static class QueuedTask 
+	{
+		/** The task to run. */
+		private final Runnable task;
+
+		/** When the task was added to the queue, in nanoseconds. */
+		private final long queued;
+
+		/**
+		 * Initializes a queued task.
+		 *
+		 * @param task the task to run
+		 * @param queued when the task was added, in nanoseconds
+		 */
+		public QueuedTask(Runnable task, long queued) 
+		{
+			this.task = task;
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * A group of tasks run by this work queue. Waiting on a group only waits for
+	 * the tasks submitted through that group, so independent jobs (like building
+	 * an index and answering queries) can share the same work queue.
+	 */
+	public class TaskGroup 
+	{
+		/** The amount of pending (or unfinished) work in this group. */
+		private int pending;
+
+		/**
+		 * Initializes an empty task group.
+		 */
+		private TaskGroup() 
+		{
+			this.pending = 0;
+		}
+
+		/**
+		 * Adds a work request to the work queue as part of this group.
+		 *
+		 * @param task work request (in the form of a {@link Runnable} object)
+		 */
+		public void execute(Runnable task) 
+		{
+			incrementGroup();
+			WorkQueue.this.execute(new Droppable() 
+			{
+				@Override
+				public void run() 
+				{
+					try 
+					{
+						task.run();
+					}
+					finally 
+					{
+						decrementGroup();
+					}
+				}
+
+				@Override
+				public void dropped() 
+				{
+					decrementGroup();
+				}
+			});
+		}
+
+		/**
+		 * Adds a work request to the work queue as part of this group, and returns
+		 * a future that completes when the request has run. If the request is
+		 * dropped by a shutdown, the future completes exceptionally with a
+		 * {@link java.util.concurrent.CancellationException}.
+		 *
+		 * @param task work request (in the form of a {@link Runnable} object)
+		 * @return a future that completes once the task has run
+		 *
+		 * @see WorkQueue#submit(Runnable)
+		 */
+		public CompletableFuture<Void> submit(Runnable task) 
+		{
+			incrementGroup();
+			return WorkQueue.this.submit(task).whenComplete((result, error) -> decrementGroup());
+		}
+
+		/**
+		 * Once the asynchronous stage completes normally, runs the action with its
+		 * result as a work request in this group. The stage counts as pending work
+		 * until then, so {@link #finish()} also waits for it, but no thread is
+		 * used while waiting. If the stage completes exceptionally, the action is
+		 * not run.
+		 *
+		 * @param <T> the type of result
+		 * @param stage the asynchronous stage to wait for
+		 * @param action the action to run with the result
+		 */
+		public <T> void whenComplete(CompletionStage<T> stage, Consumer<? super T> action) 
+		{
+			incrementGroup();
+			stage.whenComplete((result, error) -> {
+				try 
+				{
+					if (error == null) 
+					{
+						execute(() -> action.accept(result));
+					}
+				}
+				finally 
+				{
+					decrementGroup();
+				}
+			});
+		}
+
+		/**
+		 * Waits for all pending work in this group to be finished. Work submitted
+		 * outside of this group is not waited on.
+		 */
+		public synchronized void finish() 
+		{
+			while (pending > 0) 
+			{
+				try 
+				{
+					this.wait();
+				}
+				catch (InterruptedException e) 
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Returns the amount of pending (or unfinished) work in this group.
+		 *
+		 * @return number of pending tasks
+		 */
+		public synchronized int pending() 
+		{
+			return pending;
+		}
+
+		/**
+		 * Safely increments the pending work in this group.
+		 */
+		private synchronized void incrementGroup() 
+		{
+			pending++;
+		}
+
+		/**
+		 * Safely decrements the pending work in this group, and wakes up any
+		 * threads waiting for the group to finish.
+		 */
+		private synchronized void decrementGroup() 
+		{
+			pending--;
+			if (pending == 0) 
+			{
+				this.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Runs a task on its own virtual thread once a permit is available. If a
+	 * shutdown is detected before the task starts, the task is dropped.
+	 */
+	private class VirtualTask implements Runnable 
+	{
+		/** The task to run. */
+		private final Runnable task;
+
+		/** When the task was added, in nanoseconds. */
+		private final long queued;
+
+		/**
+		 * Initializes this virtual task.
+		 *
+		 * @param task the task to run
+		 * @param queued when the task was added, in nanoseconds
+		 */
+		public VirtualTask(Runnable task, long queued) 
+		{
+			this.task = task;
+			this.queued = queued;
+		}
+
+		@Override
+		public void run() 
+		{
+			try 
+			{
+				permits.acquire();
+			}
+			catch (InterruptedException e) 
+			{
+				System.err.println("Warning: Work queue interrupted while waiting.");
+				log.catching(Level.DEBUG, e);
+				drop(task);
+				return;
+			}
+			finally 
+			{
+				synchronized (queue) 
+				{
+					waiting--;
+					dequeued();
+				}
+			}
+
+			try 
+			{
+				if (shutdown) 
+				{
+					drop(task);
+				}
+				else 
+				{
+					owner.set(WorkQueue.this);
+					runTask(task, queued);
+				}
+			}
+			finally 
+			{
+				permits.release();
+			}
+		}
 	}
 
 	/**
@@ -193,6 +828,15 @@ public class WorkQueue
 	 */
 	private class Worker extends Thread 
 	{
+		/** The number of tasks run by this worker. */
+		private volatile long tasks;
+
+		/** Time spent running tasks, in nanoseconds. */
+		private volatile long busy;
+
+		/** Time spent waiting for tasks, in nanoseconds. */
+		private volatile long idle;
+
 		/**
 		 * Initializes a worker thread with a custom name.
 		 */
@@ -204,17 +848,19 @@ public class WorkQueue
 		@Override
 		public void run() 
 		{
-			Runnable task = null;
+			QueuedTask task = null;
+			owner.set(WorkQueue.this);
 
 			while (true) 
 			{
+				long waiting = System.nanoTime();
+
 				synchronized (queue) 
 				{
 					while (queue.isEmpty() && !shutdown) 
 					{
 						try 
 						{
-							log.debug("Work queue worker waiting...");
 							queue.wait();
 						}
 						catch (InterruptedException e) 
@@ -236,21 +882,14 @@ public class WorkQueue
 					else 
 					{
 						task = queue.removeFirst();
+						dequeued();
 					}
 				}
 
-				try 
-				{
-					log.debug("Work queue worker found work.");
-					task.run();
-				}
-				catch (RuntimeException e) 
-				{
-					// catch runtime exceptions to avoid leaking threads
-					System.err.println("Warning: Work queue encountered an exception while running.");
-					log.catching(Level.DEBUG, e);
-				}
-				decrementPending();
+				// only this worker writes its counters, so volatile is enough here
+				idle += System.nanoTime() - waiting;
+				busy += runTask(task.task, task.queued);
+				tasks++;
 			}
 		}
 	}